@@ -0,0 +1,145 @@
+package org.ifsoft.websockets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
+
+/**
+ * Knows which videobridges colibri-ws connections can be proxied to, keyed by the websocket
+ * server-id that each bridge puts in the first path segment of its colibri-ws URLs
+ * (/colibri-ws/&lt;server-id&gt;/&lt;conference&gt;/&lt;endpoint&gt;).
+ *
+ * Bridges come from two places: every cluster node registers its own, internal videobridge in a
+ * clustered cache, and external bridges are listed in 'ofmeet.websockets.bridges' as
+ * comma-separated server-id=host:port pairs (a server-id may be listed more than once to give it
+ * fallback addresses). An address that fails to connect is skipped for a back-off period, so a
+ * dead bridge address is not retried by every joining client.
+ */
+public class BridgeRegistry {
+
+        private static final Logger Log = LoggerFactory.getLogger( "BridgeRegistry" );
+
+        private static final Cache<String, String> internalBridges = CacheFactory.createCache( "ofmeet-videobridges" );
+        private static final Map<String, Long> failedUntil = new ConcurrentHashMap<>();
+
+        private static String configuredValue = null;
+        private static Map<String, List<String>> configuredBridges = Collections.emptyMap();
+
+        public static void register(String serverId, String address)
+        {
+                Log.info("Registering videobridge " + serverId + " at " + address);
+                internalBridges.put(serverId, address);
+        }
+
+        public static void unregister(String serverId)
+        {
+                internalBridges.remove(serverId);
+        }
+
+        /**
+         * Picks the address to proxy a colibri-ws request to.
+         *
+         * @param path the request path, starting with /colibri-ws/
+         * @param defaultAddress the address to use when the server-id is not known
+         * @return host:port of a bridge
+         */
+        public static String resolve(String path, String defaultAddress)
+        {
+                final String serverId = getServerId(path);
+                final List<String> candidates = new ArrayList<>(2);
+
+                if (serverId != null)
+                {
+                        final String internal = internalBridges.get(serverId);
+                        if (internal != null) candidates.add(internal);
+
+                        final List<String> configured = getConfiguredBridges().get(serverId);
+                        if (configured != null) candidates.addAll(configured);
+                }
+
+                if (candidates.isEmpty())
+                {
+                        Log.debug("No videobridge registered for server-id {}, using {}", serverId, defaultAddress);
+                        return defaultAddress;
+                }
+
+                final long now = System.currentTimeMillis();
+                String best = null;
+                long bestUntil = Long.MAX_VALUE;
+
+                for (String candidate : candidates)
+                {
+                        final Long until = failedUntil.get(candidate);
+                        if (until == null || until <= now) return candidate;
+
+                        if (until < bestUntil)
+                        {
+                                best = candidate;
+                                bestUntil = until;
+                        }
+                }
+
+                // Every address is backing off; try the one that failed longest ago rather than refusing the client.
+                return best;
+        }
+
+        public static void connectFailed(URI uri)
+        {
+                final long backoff = JiveGlobals.getLongProperty( "ofmeet.websockets.bridges.failure.backoff", 30000);
+                failedUntil.put(uri.getHost() + ":" + uri.getPort(), System.currentTimeMillis() + backoff);
+        }
+
+        public static void connectSucceeded(URI uri)
+        {
+                if (!failedUntil.isEmpty()) failedUntil.remove(uri.getHost() + ":" + uri.getPort());
+        }
+
+        private static String getServerId(String path)
+        {
+                // path is /colibri-ws/<server-id>/...
+                final int start = path.indexOf('/', 1);
+                if (start < 0) return null;
+
+                final int end = path.indexOf('/', start + 1);
+                return end < 0 ? path.substring(start + 1) : path.substring(start + 1, end);
+        }
+
+        private static synchronized Map<String, List<String>> getConfiguredBridges()
+        {
+                final String value = JiveGlobals.getProperty( "ofmeet.websockets.bridges", "");
+
+                if (!value.equals(configuredValue))
+                {
+                        final Map<String, List<String>> bridges = new HashMap<>();
+
+                        for (String entry : value.split(","))
+                        {
+                                final int separator = entry.indexOf('=');
+
+                                if (separator > 0)
+                                {
+                                        bridges.computeIfAbsent(entry.substring(0, separator).trim(), id -> new ArrayList<>()).add(entry.substring(separator + 1).trim());
+                                }
+                                else if (!entry.trim().isEmpty())
+                                {
+                                        Log.warn("Ignoring malformed entry '" + entry + "' in 'ofmeet.websockets.bridges', expected server-id=host:port");
+                                }
+                        }
+
+                        configuredBridges = bridges;
+                        configuredValue = value;
+                }
+                return configuredBridges;
+        }
+}
@@ -0,0 +1,285 @@
+package org.ifsoft.websockets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import org.eclipse.jetty.ee8.websocket.api.Session;
+import org.eclipse.jetty.ee8.websocket.api.StatusCode;
+import org.eclipse.jetty.ee8.websocket.api.SuspendToken;
+import org.eclipse.jetty.ee8.websocket.api.WriteCallback;
+
+import org.jivesoftware.util.JiveGlobals;
+
+/**
+ * Bounded queue of frames waiting to be written to one side of a proxied websocket.
+ *
+ * Frames are either text ({@link String}) or binary ({@link ByteBuffer}) and are passed through
+ * as received, without copying. They are written one at a time with the asynchronous send API,
+ * so the thread that received a frame never blocks on a slow peer. Frames offered before the
+ * destination session is known (the upstream bridge is still connecting) are kept and flushed
+ * once it is. When the queue is full, the configured {@link OverflowPolicy} decides what happens.
+ * Suspending the source does not stop the frames that it already read, so a queue that keeps
+ * filling up beyond twice its capacity is closed regardless of the policy. When a queue is
+ * closed because of an overflow or a failed write, both sessions are closed along with it.
+ */
+public class OutboundQueue implements WriteCallback
+{
+    private static final Logger Log = LoggerFactory.getLogger( "OutboundQueue" );
+
+    public enum OverflowPolicy
+    {
+        /** Keep every frame and stop reading from the source session until the queue drains. */
+        BACKPRESSURE,
+
+        /** Discard the oldest queued frame to make room for the new one. */
+        DROP_OLDEST,
+
+        /** Discard the frame that is being offered. */
+        DROP_NEWEST,
+
+        /** Close the destination session, as it is not keeping up. */
+        CLOSE
+    }
+
+    private final String name;
+    private final ProxyMetrics.Side metrics;
+    private final int capacity;
+    private final int limit;
+    private final OverflowPolicy policy;
+    private final ArrayDeque<Object> queue = new ArrayDeque<>();
+
+    private Session session = null;
+    private Session source = null;
+    private SuspendToken suspendToken = null;
+    private boolean sending = false;
+    private boolean closed = false;
+    private long sendStarted = 0;
+    private int sendSize = 0;
+
+    public OutboundQueue(String name, ProxyMetrics.Side metrics)
+    {
+        this(name, metrics, JiveGlobals.getIntProperty( "ofmeet.websockets.proxy.queue.size", 1024), getConfiguredPolicy());
+    }
+
+    public OutboundQueue(String name, ProxyMetrics.Side metrics, int capacity, OverflowPolicy policy)
+    {
+        this.name = name;
+        this.metrics = metrics;
+        this.capacity = Math.max(1, capacity);
+        this.limit = this.capacity * 2;
+        this.policy = policy;
+    }
+
+    private static OverflowPolicy getConfiguredPolicy()
+    {
+        final String value = JiveGlobals.getProperty( "ofmeet.websockets.proxy.overflow.policy", OverflowPolicy.BACKPRESSURE.name());
+
+        try {
+            return OverflowPolicy.valueOf(value.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.warn("Unknown value '" + value + "' for 'ofmeet.websockets.proxy.overflow.policy', using " + OverflowPolicy.BACKPRESSURE);
+            return OverflowPolicy.BACKPRESSURE;
+        }
+    }
+
+    /**
+     * Sets the session frames are written to and starts flushing anything queued so far.
+     */
+    public void setSession(Session session)
+    {
+        synchronized (this) {
+            this.session = session;
+        }
+        flush();
+    }
+
+    /**
+     * Sets the session frames are read from, which is suspended while applying backpressure.
+     */
+    public synchronized void setSource(Session source)
+    {
+        this.source = source;
+    }
+
+    public synchronized int size()
+    {
+        return queue.size();
+    }
+
+    public void offer(String text)
+    {
+        enqueue(text);
+    }
+
+    public void offer(ByteBuffer data)
+    {
+        enqueue(data);
+    }
+
+    private void enqueue(Object frame)
+    {
+        boolean overflow = false;
+
+        synchronized (this)
+        {
+            if (closed) return;
+
+            if (queue.size() >= capacity)
+            {
+                switch (policy)
+                {
+                    case DROP_OLDEST:
+                        queue.poll();
+                        metrics.frameDropped();
+                        Log.warn("{} queue full, dropped oldest frame", name);
+                        break;
+
+                    case DROP_NEWEST:
+                        metrics.frameDropped();
+                        Log.warn("{} queue full, dropped newest frame", name);
+                        return;
+
+                    case CLOSE:
+                        metrics.overflowClosed();
+                        Log.warn("{} queue full, closing slow session", name);
+                        overflow = true;
+                        break;
+
+                    default:
+                        if (queue.size() >= limit)
+                        {
+                            metrics.overflowClosed();
+                            Log.warn("{} queue full while suspended, closing slow session", name);
+                            overflow = true;
+                        }
+                        else if (suspendToken == null && source != null)
+                        {
+                            metrics.suspended();
+                            Log.debug("{} queue full, suspending source", name);
+                            suspendToken = source.suspend();
+                        }
+                }
+            }
+
+            if (!overflow)
+            {
+                metrics.frameQueued(sizeOf(frame), queue.size());
+                queue.offer(frame);
+            }
+        }
+
+        if (overflow)
+        {
+            fail(StatusCode.TRY_AGAIN_LATER, "Proxy queue overflow");
+            return;
+        }
+
+        flush();
+    }
+
+    public void close()
+    {
+        final SuspendToken token;
+
+        synchronized (this)
+        {
+            closed = true;
+            queue.clear();
+            token = suspendToken;
+            suspendToken = null;
+        }
+
+        if (token != null) token.resume();
+    }
+
+    /**
+     * Closes the queue and both sessions, so that neither peer keeps sending frames that are discarded.
+     */
+    private void fail(int statusCode, String reason)
+    {
+        final Session target;
+        final Session peer;
+
+        synchronized (this)
+        {
+            target = session;
+            peer = source;
+        }
+
+        close();
+
+        for (Session toClose : new Session[] { target, peer })
+        {
+            try {
+                if (toClose != null && toClose.isOpen()) toClose.close(statusCode, reason);
+            } catch (Exception e) {
+                Log.debug("{} unable to close session", name, e);
+            }
+        }
+    }
+
+    private void flush()
+    {
+        final Object frame;
+        final Session target;
+        SuspendToken token = null;
+
+        synchronized (this)
+        {
+            if (sending || closed || session == null || !session.isOpen()) return;
+
+            frame = queue.poll();
+            if (frame == null) return;
+
+            if (suspendToken != null && queue.size() <= capacity / 2)
+            {
+                token = suspendToken;
+                suspendToken = null;
+            }
+
+            sending = true;
+            sendStarted = System.nanoTime();
+            sendSize = sizeOf(frame);
+            target = session;
+        }
+
+        if (token != null)
+        {
+            Log.debug("{} queue drained, resuming source", name);
+            token.resume();
+        }
+
+        if (frame instanceof ByteBuffer)
+        {
+            target.getRemote().sendBytes((ByteBuffer) frame, this);
+        }
+        else target.getRemote().sendString((String) frame, this);
+    }
+
+    @Override public void writeSuccess()
+    {
+        synchronized (this) {
+            sending = false;
+            metrics.frameSent(sendSize, (System.nanoTime() - sendStarted) / 1000000);
+        }
+        flush();
+    }
+
+    @Override public void writeFailed(Throwable x)
+    {
+        Log.error(name + " deliver failed", x);
+
+        synchronized (this) {
+            sending = false;
+        }
+        fail(StatusCode.SERVER_ERROR, "Proxy write failed");
+    }
+
+    private static int sizeOf(Object frame)
+    {
+        return frame instanceof ByteBuffer ? ((ByteBuffer) frame).remaining() : ((String) frame).length();
+    }
+}
@@ -12,13 +12,12 @@ import java.security.*;
 import java.security.cert.X509Certificate;
 import java.util.*;
 import java.util.concurrent.*;
-import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.nio.ByteBuffer;
 import javax.net.*;
 import javax.net.ssl.*;
 import javax.security.auth.callback.*;
 
-import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.ee8.websocket.client.ClientUpgradeRequest;
 import org.eclipse.jetty.ee8.websocket.client.WebSocketClient;
 import org.eclipse.jetty.ee8.websocket.api.Session;
@@ -40,15 +39,16 @@ import org.xmpp.packet.*;
 public class ProxyConnection
 {
     private static Logger Log = LoggerFactory.getLogger( "ProxyConnection" );
-    private ProxyWebSocket socket;
-    private boolean connected = false;
+    private volatile ProxyWebSocket socket;
+    private volatile boolean connected = false;
 
-    private WebSocketClient wsClient = null;
-	private HttpClient httpClient = null;
     private ProxySocket proxySocket = null;
     private final boolean isSecure;
+    private final OutboundQueue toBridge = new OutboundQueue("ProxyConnection", ProxyMetrics.bridge);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private long connectStarted = 0;
 
-    public ProxyConnection(URI uri, List<String> subprotocol, int connectTimeout)
+    public ProxyConnection(URI uri, List<String> subprotocol)
     {
         Log.debug("ProxyConnection " + uri + " " + subprotocol);
 
@@ -60,80 +60,109 @@ public class ProxyConnection
         }
         else isSecure = false;
 
-        httpClient = new HttpClient();
-        final QueuedThreadPool queuedThreadPool = QueuedThreadPoolProvider.getQueuedThreadPool("ProxyConnection-HttpClient");
-        httpClient.setExecutor(queuedThreadPool);
-        httpClient.setConnectTimeout(connectTimeout);
+        ProxyMetrics.connectionOpened();
+        connectStarted = System.currentTimeMillis();
 
         try
         {
-			httpClient.start();
-			wsClient = new WebSocketClient(httpClient);
-			wsClient.setIdleTimeout(Duration.ofMinutes(5));			
-            wsClient.start();
-			
+            final WebSocketClient wsClient = WebSocketClientProvider.getWebSocketClient();
+
             final ClientUpgradeRequest request = new ClientUpgradeRequest(uri);
             if (subprotocol != null) request.setSubProtocols(subprotocol);
 			
 			proxySocket = new ProxySocket(this);			
-            wsClient.connect(proxySocket, uri, request);
+            wsClient.connect(proxySocket, uri, request).whenComplete((session, failure) ->
+            {
+                if (failure != null)
+                {
+                    ProxyMetrics.connectFailed();
+                    BridgeRegistry.connectFailed(uri);
+                    Log.warn("ProxyConnection - unable to connect to " + uri, failure);
+                    onConnectFailed();
+                }
+                else BridgeRegistry.connectSucceeded(uri);
+            });
 
             Log.debug("Connecting to : " + uri);
             connected = true;
         }
         catch (Exception e)
         {
+            ProxyMetrics.connectFailed();
+            BridgeRegistry.connectFailed(uri);
             Log.error("ProxyConnection " + uri, e);
-            connected = false;
+            onConnectFailed();
         }
     }
 
+    /**
+     * Closes the browser's websocket when the bridge cannot be reached, so that the client reconnects (and is routed
+     * to a healthy bridge) rather than waiting for a bridge that never answers. When the browser's websocket is not
+     * open yet, it is closed as soon as it is (see {@link #isClosed()}).
+     */
+    private void onConnectFailed()
+    {
+        connected = false;
+        markClosed();
+
+        final ProxyWebSocket socket = this.socket;
+        if (socket != null) socket.disconnect(StatusCode.TRY_AGAIN_LATER, "Bridge unavailable");
+    }
+
     public void setSocket( ProxyWebSocket socket ) {
         this.socket = socket;
     }
 
-    public void deliver(String text)
+    public void onClientConnect(Session clientSession)
     {
-        Log.debug("ProxyConnection - deliver \n" + text);
+        toBridge.setSource(clientSession);
+    }
 
-        if (proxySocket != null)
-        {
-            proxySocket.deliver(text);
-        }
+    public void onBridgeConnect(Session bridgeSession)
+    {
+        ProxyMetrics.connectSucceeded(System.currentTimeMillis() - connectStarted);
+
+        if (this.socket != null) this.socket.onBridgeConnect(bridgeSession);
+        toBridge.setSession(bridgeSession);
     }
 
-    public void stop()
+    public void deliver(String text)
     {
-        Log.debug("ProxyConnection - stop");
+        Log.debug("ProxyConnection - deliver \n{}", text);
+        toBridge.offer(text);
+    }
 
-        try
-        {
-            if (wsClient != null) wsClient.stop();
-            if (httpClient != null) httpClient.stop();			
-        }
-        catch (Exception e)
-        {
-            Log.error("ProxyConnection - stop", e);
-        }
+    public void deliver(ByteBuffer data)
+    {
+        if (Log.isDebugEnabled()) Log.debug("ProxyConnection - deliver binary " + data.remaining());
+        toBridge.offer(data);
     }
 
     public void disconnect()
     {
         Log.debug("ProxyConnection - disconnect");
+        markClosed();
         if (proxySocket != null) proxySocket.disconnect();
-        if (wsClient != null) stop();
     }
 
     public void onClose(int code, String reason)
     {
         Log.debug("ProxyConnection - onClose " + reason + " " + code);
         connected = false;
+        ProxyMetrics.bridge.closed(code);
+        markClosed();
 
         if (this.socket != null) this.socket.disconnect();
     }
 
+    private void markClosed()
+    {
+        toBridge.close();
+        if (closed.compareAndSet(false, true)) ProxyMetrics.connectionClosed();
+    }
+
     public void onMessage(String text) {
-        Log.debug("ProxyConnection - onMessage \n" + text);
+        Log.debug("ProxyConnection - onMessage \n{}", text);
 
         try {
             this.socket.deliver(text);
@@ -144,6 +173,18 @@ public class ProxyConnection
         }
     }
 
+    public void onMessage(ByteBuffer data) {
+        if (Log.isDebugEnabled()) Log.debug("ProxyConnection - onMessage binary " + data.remaining());
+
+        try {
+            this.socket.deliver(data);
+        }
+
+        catch (Exception e) {
+            Log.error("deliverRawBinary error", e);
+        }
+    }
+
     public boolean isSecure() {
         return isSecure;
     }
@@ -152,6 +193,10 @@ public class ProxyConnection
         return connected;
     }
 
+    public boolean isClosed() {
+        return closed.get();
+    }
+
     private SSLContext getSSLContext()
     {
         SSLContext sc = null;
@@ -194,11 +239,10 @@ public class ProxyConnection
         return sc;
     }
 
-    @WebSocket(maxTextMessageSize = 64 * 1024) public class ProxySocket
+    @WebSocket public class ProxySocket
     {
         private Session session;
         private ProxyConnection proxyConnection;
-        private String lastMessage = null;
         private String ipaddr = null;
 
         public ProxySocket(ProxyConnection proxyConnection)
@@ -223,34 +267,21 @@ public class ProxyConnection
             Log.debug("ProxySocket onConnect: " + session);
             this.session = session;
 
-            if (lastMessage != null) deliver(lastMessage);
+            if (proxyConnection != null) proxyConnection.onBridgeConnect(session);
         }
 
         @OnWebSocketMessage public void onMessage(String msg)
         {
-            Log.debug("ProxySocket onMessage text \n" + msg);
+            Log.debug("ProxySocket onMessage text \n{}", msg);
             if (proxyConnection != null) proxyConnection.onMessage(msg);
         }
 		
 		@OnWebSocketMessage public void onMessage(byte[] data, int offset, int length)  
 		{
-            Log.debug("ProxySocket onMessage binary \n" + data);
+            if (Log.isDebugEnabled()) Log.debug("ProxySocket onMessage binary " + length);
+            if (proxyConnection != null) proxyConnection.onMessage(ByteBuffer.wrap(data, offset, length));
 		}		
 
-        public void deliver(String text)
-        {
-            if (session != null)
-            {
-                try {
-                    Log.debug("ProxySocket deliver: \n" + text);
-                    session.getRemote().sendString(text);
-                    lastMessage = null;
-                } catch (Exception e) {
-                    Log.error("ProxySocket deliver", e);
-                }
-            } else lastMessage = text;
-        }
-
         public void disconnect()
         {
             if (session != null) session.close(StatusCode.NORMAL,"I'm done");
@@ -0,0 +1,197 @@
+package org.ifsoft.websockets;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Counters, gauges and histograms for the colibri-ws proxy. Recording is lock-free, so it is
+ * safe to call from the websocket threads; {@link #toJSON()} takes a (non-atomic) snapshot for
+ * the admin console and the metrics servlet.
+ */
+public class ProxyMetrics {
+
+        /** Frames written to the browser side of a proxied websocket. */
+        public static final Side client = new Side();
+
+        /** Frames written to the videobridge side of a proxied websocket. */
+        public static final Side bridge = new Side();
+
+        private static final LongAdder connectionsOpened = new LongAdder();
+        private static final LongAdder connectionsClosed = new LongAdder();
+        private static final LongAdder connectFailures = new LongAdder();
+        private static final AtomicLong activeConnections = new AtomicLong();
+        private static final Histogram connectTime = new Histogram(5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000);
+
+        public static void connectionOpened()
+        {
+                connectionsOpened.increment();
+                activeConnections.incrementAndGet();
+        }
+
+        public static void connectionClosed()
+        {
+                connectionsClosed.increment();
+                activeConnections.decrementAndGet();
+        }
+
+        public static void connectSucceeded(long millis)
+        {
+                connectTime.record(millis);
+        }
+
+        public static void connectFailed()
+        {
+                connectFailures.increment();
+        }
+
+        public static long getActiveConnections()
+        {
+                return activeConnections.get();
+        }
+
+        public static JSONObject toJSON()
+        {
+                final JSONObject json = new JSONObject();
+                json.put("connections_opened", connectionsOpened.sum());
+                json.put("connections_closed", connectionsClosed.sum());
+                json.put("connections_active", activeConnections.get());
+                json.put("connect_failures", connectFailures.sum());
+                json.put("connect_time_ms", connectTime.toJSON());
+                json.put("client", client.toJSON());
+                json.put("bridge", bridge.toJSON());
+                json.put("executor", QueuedThreadPoolProvider.toJSON());
+                return json;
+        }
+
+        /**
+         * Metrics for one side of the proxy: what was written to it and how it closed.
+         */
+        public static class Side
+        {
+                private final LongAdder frames = new LongAdder();
+                private final LongAdder bytes = new LongAdder();
+                private final LongAdder dropped = new LongAdder();
+                private final LongAdder overflowCloses = new LongAdder();
+                private final LongAdder suspensions = new LongAdder();
+                private final Histogram frameSize = new Histogram(64, 256, 1024, 4096, 16384, 65536);
+                private final Histogram queueDepth = new Histogram(0, 1, 4, 16, 64, 256, 1024);
+                private final Histogram sendLatency = new Histogram(1, 5, 10, 50, 100, 500, 1000, 5000);
+                private final Map<Integer, LongAdder> closeCodes = new ConcurrentHashMap<>();
+
+                public void frameQueued(int size, int depth)
+                {
+                        frameSize.record(size);
+                        queueDepth.record(depth);
+                }
+
+                public void frameSent(int size, long millis)
+                {
+                        frames.increment();
+                        bytes.add(size);
+                        sendLatency.record(millis);
+                }
+
+                public void frameDropped()
+                {
+                        dropped.increment();
+                }
+
+                public void overflowClosed()
+                {
+                        overflowCloses.increment();
+                }
+
+                public void suspended()
+                {
+                        suspensions.increment();
+                }
+
+                public void closed(int statusCode)
+                {
+                        closeCodes.computeIfAbsent(statusCode, code -> new LongAdder()).increment();
+                }
+
+                public JSONObject toJSON()
+                {
+                        final JSONObject codes = new JSONObject();
+                        for (Map.Entry<Integer, LongAdder> entry : closeCodes.entrySet())
+                        {
+                                codes.put(String.valueOf(entry.getKey()), entry.getValue().sum());
+                        }
+
+                        final JSONObject json = new JSONObject();
+                        json.put("frames", frames.sum());
+                        json.put("bytes", bytes.sum());
+                        json.put("dropped", dropped.sum());
+                        json.put("overflow_closes", overflowCloses.sum());
+                        json.put("suspensions", suspensions.sum());
+                        json.put("frame_size_bytes", frameSize.toJSON());
+                        json.put("queue_depth", queueDepth.toJSON());
+                        json.put("send_latency_ms", sendLatency.toJSON());
+                        json.put("close_codes", codes);
+                        return json;
+                }
+        }
+
+        /**
+         * Fixed-bucket histogram. Each bucket counts values up to and including its bound; the
+         * last, implicit bucket counts everything larger.
+         */
+        public static class Histogram
+        {
+                private final long[] bounds;
+                private final LongAdder[] counts;
+                private final LongAdder sum = new LongAdder();
+                private final AtomicLong max = new AtomicLong();
+
+                public Histogram(long... bounds)
+                {
+                        this.bounds = bounds;
+                        this.counts = new LongAdder[bounds.length + 1];
+                        for (int i = 0; i < counts.length; i++) counts[i] = new LongAdder();
+                }
+
+                public void record(long value)
+                {
+                        int i = 0;
+                        while (i < bounds.length && value > bounds[i]) i++;
+
+                        counts[i].increment();
+                        sum.add(value);
+                        max.accumulateAndGet(value, Math::max);
+                }
+
+                public long getCount()
+                {
+                        long count = 0;
+                        for (LongAdder adder : counts) count += adder.sum();
+                        return count;
+                }
+
+                public JSONObject toJSON()
+                {
+                        final JSONArray buckets = new JSONArray();
+                        for (int i = 0; i < counts.length; i++)
+                        {
+                                final JSONObject bucket = new JSONObject();
+                                bucket.put("le", i < bounds.length ? String.valueOf(bounds[i]) : "+Inf");
+                                bucket.put("count", counts[i].sum());
+                                buckets.put(bucket);
+                        }
+
+                        final long count = getCount();
+                        final JSONObject json = new JSONObject();
+                        json.put("count", count);
+                        json.put("sum", sum.sum());
+                        json.put("mean", count == 0 ? 0 : sum.sum() / count);
+                        json.put("max", max.get());
+                        json.put("buckets", buckets);
+                        return json;
+                }
+        }
+}
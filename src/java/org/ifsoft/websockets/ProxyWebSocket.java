@@ -10,6 +10,7 @@ import java.security.*;
 import java.util.*;
 import java.text.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -18,6 +19,7 @@ import javax.servlet.http.HttpServletResponse;
 import org.eclipse.jetty.ee8.websocket.api.annotations.*;
 import org.eclipse.jetty.ee8.websocket.api.Session;
 import org.eclipse.jetty.ee8.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.ee8.websocket.api.StatusCode;
 
 import org.jivesoftware.util.ParamUtils;
 
@@ -28,8 +30,9 @@ import org.jivesoftware.openfire.XMPPServer;
 @WebSocket public class ProxyWebSocket
 {
     private static Logger Log = LoggerFactory.getLogger( "ProxyWebSocket" );
-    private Session wsSession;
+    private volatile Session wsSession;
     private ProxyConnection proxyConnection;
+    private final OutboundQueue toBrowser = new OutboundQueue("ProxyWebSocket", ProxyMetrics.client);
 
     public void setProxyConnection(ProxyConnection proxyConnection) {
         this.proxyConnection = proxyConnection;
@@ -41,15 +44,33 @@ import org.jivesoftware.openfire.XMPPServer;
         return wsSession.isOpen();
     }
 
+    public void onBridgeConnect(Session bridgeSession)
+    {
+        toBrowser.setSource(bridgeSession);
+    }
+
     @OnWebSocketConnect public void onConnect(Session wsSession)
     {
         this.wsSession = wsSession;
         //proxyConnection.setSecure(wsSession.isSecure());
         Log.debug("onConnect");
+
+        if (proxyConnection != null && proxyConnection.isClosed())
+        {
+            // The bridge could not be reached before the browser was connected.
+            disconnect(StatusCode.TRY_AGAIN_LATER, "Bridge unavailable");
+            return;
+        }
+
+        if (proxyConnection != null) proxyConnection.onClientConnect(wsSession);
+        toBrowser.setSession(wsSession);
     }
 
     @OnWebSocketClose public void onClose(int statusCode, String reason)
     {
+        ProxyMetrics.client.closed(statusCode);
+        toBrowser.close();
+
         try {
             proxyConnection.disconnect();
 
@@ -67,10 +88,10 @@ import org.jivesoftware.openfire.XMPPServer;
 
     @OnWebSocketMessage public void onTextMethod(String data)
     {
-        if ( !"".equals( data.trim()))
+        if ( !data.isBlank() )
         {
             try {
-                Log.debug(" : onMessage : Received : \n" + data );
+                Log.debug(" : onMessage : Received : \n{}", data );
                 proxyConnection.deliver(data);
 
             } catch ( Exception e ) {
@@ -81,31 +102,51 @@ import org.jivesoftware.openfire.XMPPServer;
 
     @OnWebSocketMessage public void onBinaryMethod(byte data[], int offset, int length)
     {
-     // simple BINARY message received
+        if (length > 0)
+        {
+            try {
+                if (Log.isDebugEnabled()) Log.debug(" : onMessage : Received binary : " + length );
+                proxyConnection.deliver(ByteBuffer.wrap(data, offset, length));
+
+            } catch ( Exception e ) {
+                Log.error( "An error occurred while attempting to route the binary packet : ", e );
+            }
+        }
     }
 
     public void deliver(String message)
     {
-        if (wsSession != null && wsSession.isOpen() && !"".equals( message.trim() ) )
+        if ( !message.isBlank() )
         {
-            try {
-                Log.debug(" : Delivered : \n" + message );
-                wsSession.getRemote().sendString(message);
-            } catch (Exception e) {
-                Log.error("ProxyWebSocket deliver " + e);
-                Log.warn("Could not deliver : \n" + message );
-            }
+            Log.debug(" : Delivered : \n{}", message );
+            toBrowser.offer(message);
+        }
+    }
+
+    public void deliver(ByteBuffer data)
+    {
+        if (data.hasRemaining())
+        {
+            if (Log.isDebugEnabled()) Log.debug(" : Delivered binary : " + data.remaining() );
+            toBrowser.offer(data);
         }
     }
 
     public void disconnect()
     {
-        Log.debug("disconnect : ProxyWebSocket disconnect");
+        disconnect(StatusCode.NORMAL, null);
+    }
+
+    public void disconnect(int statusCode, String reason)
+    {
+        Log.debug("disconnect : ProxyWebSocket disconnect " + statusCode);
+        toBrowser.close();
 
+        final Session wsSession = this.wsSession;
         try {
             if (wsSession != null && wsSession.isOpen())
             {
-                wsSession.close();
+                wsSession.close(statusCode, reason);
             }
         } catch ( Exception e ) {
 
@@ -1,21 +1,94 @@
 package org.ifsoft.websockets;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jetty.util.VirtualThreads;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import org.jivesoftware.util.JiveGlobals;
+import org.json.JSONObject;
+
+/**
+ * Owns the thread pool used by the colibri-ws proxy client. The pool is sized from properties,
+ * started before it is handed to Jetty (so Jetty does not manage its lifecycle) and stopped when
+ * the plugin is destroyed.
+ */
 public class QueuedThreadPoolProvider {
 
-        private static final int MAX_THREADS = 1024;
-        private static final QueuedThreadPool queuedThreadPool;
-        
-        static {
-                queuedThreadPool = new QueuedThreadPool(MAX_THREADS,1);
-        }
+        private static final Logger Log = LoggerFactory.getLogger( "QueuedThreadPoolProvider" );
+
+        private static QueuedThreadPool queuedThreadPool = null;
 
-        public static QueuedThreadPool getQueuedThreadPool(String name) {
-                if (! queuedThreadPool.isRunning())
+        public static synchronized QueuedThreadPool getQueuedThreadPool(String name)
+        {
+                if (queuedThreadPool == null)
                 {
-                        queuedThreadPool.setName(name);
+                        final int maxThreads = JiveGlobals.getIntProperty( "ofmeet.websockets.proxy.threads.max", 200);
+                        final int minThreads = JiveGlobals.getIntProperty( "ofmeet.websockets.proxy.threads.min", 8);
+                        final int idleTimeout = JiveGlobals.getIntProperty( "ofmeet.websockets.proxy.threads.idle.timeout", 60000);
+                        final int queueSize = JiveGlobals.getIntProperty( "ofmeet.websockets.proxy.threads.queue.size", 0);
+
+                        final BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<>(queueSize) : null;   // null selects Jetty's default, growable queue
+                        final QueuedThreadPool pool = new QueuedThreadPool(maxThreads, Math.min(minThreads, maxThreads), idleTimeout, queue);
+                        pool.setName(name);
+
+                        if (JiveGlobals.getBooleanProperty( "ofmeet.websockets.proxy.threads.virtual", false))
+                        {
+                                final Executor virtualThreads = VirtualThreads.getDefaultVirtualThreadsExecutor();
+
+                                if (virtualThreads != null)
+                                {
+                                        pool.setVirtualThreadsExecutor(virtualThreads);
+                                }
+                                else Log.warn("Virtual threads requested by 'ofmeet.websockets.proxy.threads.virtual', but they are not supported by this JVM");
+                        }
+
+                        try {
+                                pool.start();
+                        } catch (Exception e) {
+                                throw new IllegalStateException("Unable to start " + name, e);
+                        }
+
+                        queuedThreadPool = pool;
+                        Log.info("Started " + name + " with " + minThreads + "-" + maxThreads + " threads" + (queueSize > 0 ? ", queue bounded to " + queueSize : ""));
                 }
                 return queuedThreadPool;
         }
+
+        public static synchronized void stop()
+        {
+                if (queuedThreadPool == null) return;
+
+                try {
+                        queuedThreadPool.stop();
+                } catch (Exception e) {
+                        Log.error("Unable to stop " + queuedThreadPool.getName(), e);
+                }
+
+                queuedThreadPool = null;
+        }
+
+        public static synchronized JSONObject toJSON()
+        {
+                final JSONObject json = new JSONObject();
+                final QueuedThreadPool pool = queuedThreadPool;
+
+                if (pool != null)
+                {
+                        json.put("threads", pool.getThreads());
+                        json.put("threads_idle", pool.getIdleThreads());
+                        json.put("threads_busy", pool.getBusyThreads());
+                        json.put("threads_min", pool.getMinThreads());
+                        json.put("threads_max", pool.getMaxThreads());
+                        json.put("queue_size", pool.getQueueSize());
+                        json.put("utilization", pool.getUtilizationRate());
+                        json.put("virtual_threads", pool.getVirtualThreadsExecutor() != null);
+                }
+                return json;
+        }
 }
@@ -0,0 +1,90 @@
+package org.ifsoft.websockets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.transport.HttpClientTransportOverHTTP;
+import org.eclipse.jetty.io.ClientConnector;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.ee8.websocket.client.WebSocketClient;
+
+import org.jivesoftware.util.JiveGlobals;
+
+/**
+ * Holds the single HttpClient/WebSocketClient stack that all colibri-ws proxy connections
+ * multiplex over. It is started and stopped together with the plugin, so upgrading a
+ * browser websocket no longer pays for building and tearing down a client of its own.
+ */
+public class WebSocketClientProvider {
+
+        private static final Logger Log = LoggerFactory.getLogger( "WebSocketClientProvider" );
+
+        private static HttpClient httpClient = null;
+        private static WebSocketClient wsClient = null;
+
+        public static synchronized void start() throws Exception
+        {
+                if (wsClient != null) return;
+
+                final int selectors = JiveGlobals.getIntProperty( "ofmeet.websockets.proxy.selectors", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+                final long connectTimeout = JiveGlobals.getLongProperty( "ofmeet.websockets.proxy.connect.timeout", 10000);
+                final long idleTimeout = JiveGlobals.getLongProperty( "ofmeet.websockets.proxy.idle.timeout", Duration.ofMinutes(5).toMillis());
+
+                final ClientConnector clientConnector = new ClientConnector();
+                clientConnector.setSelectors(selectors);
+                clientConnector.setSslContextFactory(SslContextFactoryProvider.getClientSslContextFactory());
+
+                final HttpClient client = new HttpClient(new HttpClientTransportOverHTTP(clientConnector));
+                final QueuedThreadPool queuedThreadPool = QueuedThreadPoolProvider.getQueuedThreadPool("ProxyConnection-HttpClient");
+                client.setExecutor(queuedThreadPool);
+                client.setConnectTimeout(connectTimeout);
+
+                final WebSocketClient webSocketClient = new WebSocketClient(client);
+                webSocketClient.setIdleTimeout(Duration.ofMillis(idleTimeout));
+                webSocketClient.setMaxTextMessageSize(getMaxMessageSize());
+                webSocketClient.setMaxBinaryMessageSize(getMaxMessageSize());
+
+                try {
+                        client.start();
+                        webSocketClient.start();
+                } catch (Exception e) {
+                        client.stop();
+                        throw e;
+                }
+
+                httpClient = client;
+                wsClient = webSocketClient;
+
+                Log.info("Started shared websocket proxy client with " + selectors + " selectors, connect timeout " + connectTimeout + "ms");
+        }
+
+        public static synchronized void stop()
+        {
+                try {
+                        if (wsClient != null) wsClient.stop();
+                        if (httpClient != null) httpClient.stop();
+                } catch (Exception e) {
+                        Log.error("Unable to stop shared websocket proxy client", e);
+                }
+
+                wsClient = null;
+                httpClient = null;
+        }
+
+        /**
+         * The largest text or binary message accepted on either side of the colibri-ws proxy.
+         */
+        public static long getMaxMessageSize()
+        {
+                return JiveGlobals.getLongProperty( "ofmeet.websockets.proxy.max.message.size", 64 * 1024);
+        }
+
+        public static synchronized WebSocketClient getWebSocketClient() throws Exception
+        {
+                if (wsClient == null) start();
+                return wsClient;
+        }
+}
@@ -16,6 +16,7 @@
 
 package org.jivesoftware.openfire.plugin.ofmeet;
 
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
 import org.jivesoftware.openfire.XMPPServer;
@@ -42,6 +43,8 @@ public class BookmarkInterceptor implements PacketInterceptor
     public static final String BOOKMARK_NAME_DEFAULT = "Video conferencing web client";
     private OfMeetPlugin ofMeetPlugin;
 
+    private static volatile Element bookmarkTemplate;
+
     public BookmarkInterceptor( OfMeetPlugin ofMeetPlugin )
     {
         this.ofMeetPlugin = ofMeetPlugin;
@@ -189,11 +192,21 @@ public class BookmarkInterceptor implements PacketInterceptor
      */
     static void addBookmark( final Element element, final URL url )
     {
-        final Element urlBookmarkElement = element.addElement( "url" );
-        urlBookmarkElement.addAttribute( "name", JiveGlobals.getProperty( BOOKMARK_NAME_PROPERTYNAME, BOOKMARK_NAME_DEFAULT ) );
-        urlBookmarkElement.addAttribute( "url", url.toExternalForm() );
+        final String name = JiveGlobals.getProperty( BOOKMARK_NAME_PROPERTYNAME, BOOKMARK_NAME_DEFAULT );
+        final String value = url.toExternalForm();
+
+        // The bookmark is the same for everyone, so it is rendered once (and again only when its name or URL changes).
+        Element template = bookmarkTemplate;
+        if ( template == null || !name.equals( template.attributeValue( "name" ) ) || !value.equals( template.attributeValue( "url" ) ) )
+        {
+            template = DocumentHelper.createElement( QName.get( "url", "storage:bookmarks" ) );
+            template.addAttribute( "name", name );
+            template.addAttribute( "url", value );
+            appendSharedElement( template );
+            bookmarkTemplate = template;
+        }
 
-        appendSharedElement( urlBookmarkElement );
+        element.add( template.createCopy() );
     }
 
     /**
@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A servlet that serves config.js, interface_config.js and branding.js as one script, so that a client needs a single
+ * (conditional) request to bootstrap instead of three.
+ *
+ * The bundle is built from the cached output of the individual servlets, and is rebuilt whenever any of those is.
+ */
+public class BootstrapServlet extends HttpServlet
+{
+    private static final Logger Log = LoggerFactory.getLogger( BootstrapServlet.class );
+
+    /**
+     * The largest number of distinct client-facing addresses that a bundle is kept for.
+     */
+    private static final int MAX_RENDERED_ORIGINS = 32;
+
+    private final Map<String, Bundle> byOrigin = new ConcurrentHashMap<>();
+
+    public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
+    {
+        try
+        {
+            Log.trace( "[{}] bootstrap requested.", request.getRemoteAddr() );
+
+            final CachedResponse config = ConfigServlet.getRendered( request );
+            final CachedResponse interfaceConfig = InterfaceConfigServlet.getRendered();
+            final CachedResponse branding = BrandingServlet.getRendered();
+
+            final String origin = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort();
+            Bundle bundle = byOrigin.get( origin );
+            if ( bundle == null || !bundle.isBuiltFrom( config, interfaceConfig, branding ) )
+            {
+                if ( bundle == null && byOrigin.size() >= MAX_RENDERED_ORIGINS ) byOrigin.clear();
+
+                bundle = new Bundle( config, interfaceConfig, branding );
+                byOrigin.put( origin, bundle );
+            }
+
+            response.setCharacterEncoding( "UTF-8" );
+            bundle.response.write( request, response );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "[{}] Failed to generate bootstrap.js!", request.getRemoteAddr(), e );
+        }
+    }
+
+    private static class Bundle
+    {
+        final CachedResponse config;
+        final CachedResponse interfaceConfig;
+        final CachedResponse branding;
+        final CachedResponse response;
+
+        Bundle( CachedResponse config, CachedResponse interfaceConfig, CachedResponse branding )
+        {
+            this.config = config;
+            this.interfaceConfig = interfaceConfig;
+            this.branding = branding;
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream( config.getBody().length + interfaceConfig.getBody().length + branding.getBody().length );
+            body.writeBytes( config.getBody() );
+            body.writeBytes( interfaceConfig.getBody() );
+            body.writeBytes( branding.getBody() );
+            this.response = new CachedResponse( body.toByteArray(), "application/javascript" );
+        }
+
+        boolean isBuiltFrom( CachedResponse config, CachedResponse interfaceConfig, CachedResponse branding )
+        {
+            return this.config == config && this.interfaceConfig == interfaceConfig && this.branding == branding;
+        }
+    }
+}
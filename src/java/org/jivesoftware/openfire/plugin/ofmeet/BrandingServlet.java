@@ -13,34 +13,53 @@
  */
 package org.jivesoftware.openfire.plugin.ofmeet;
 
-import org.apache.commons.lang3.StringUtils;
-import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.util.JiveGlobals;
-import org.json.JSONArray;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.json.JSONObject;
-import org.json.JSONString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmpp.packet.JID;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.List;
-import java.net.URL;
-import java.net.URLDecoder;
+import java.util.Map;
 
 
 /**
  * A servlet that generates the branding json that customises pade chat client
  *
+ * The 'pade.branding.*' properties are collected once and served from memory until one of them changes.
  */
-public class BrandingServlet extends HttpServlet
+public class BrandingServlet extends HttpServlet implements PropertyEventListener
 {
     private static final Logger Log = LoggerFactory.getLogger( BrandingServlet.class );
 
+    private static final String PREFIX = "pade.branding.";
+
+    private static volatile CachedResponse cached = null;
+
+    /**
+     * Counts the invalidations: branding.js is only cached when no branding property changed while it was being built.
+     */
+    private static long generation = 0;
+
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+        PropertyEventDispatcher.addListener( this );
+    }
+
+    @Override
+    public void destroy()
+    {
+        PropertyEventDispatcher.removeListener( this );
+        super.destroy();
+    }
+
     public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
     {
         try
@@ -48,36 +67,99 @@ public class BrandingServlet extends HttpServlet
             Log.debug( "[{}] branding json requested.", request.getRemoteAddr() );
 
             response.setCharacterEncoding( "UTF-8" );
-            response.setContentType( "UTF-8" );
-
-            List<String> properties = JiveGlobals.getPropertyNames();
-            JSONObject jsonObject = new JSONObject();
+            getRendered().write( request, response );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "[{}] Failed to generate branding.js!", request.getRemoteAddr(), e );
+        }
+    }
 
-            for (String propertyName : properties)
+    /**
+     * Returns branding.js, generating it when needed.
+     */
+    static CachedResponse getRendered()
+    {
+        CachedResponse rendered = cached;
+        if ( rendered == null )
+        {
+            Log.debug( "Building branding.js" );
+            final long current;
+            synchronized ( BrandingServlet.class )
             {
-                if (propertyName.indexOf("pade.branding.") == 0) {
-                    String propertyValue = JiveGlobals.getProperty(propertyName);
-                    Log.debug("BrandingServlet - Found " + propertyName + " " + propertyValue);
+                current = generation;
+            }
 
-                    jsonObject.put(propertyName.substring(14), new JSONObject(propertyValue));
+            rendered = new CachedResponse( buildScript(), "application/javascript" );
+
+            synchronized ( BrandingServlet.class )
+            {
+                if ( generation == current )
+                {
+                    cached = rendered;
                 }
             }
+        }
+        return rendered;
+    }
 
-            // Add response headers that instruct not to cache this data.
-            response.setHeader( "Expires",       "Sat, 6 May 1995 12:00:00 GMT" );
-            response.setHeader( "Cache-Control", "no-store, no-cache, must-revalidate" );
-            response.addHeader( "Cache-Control", "post-check=0, pre-check=0" );
-            response.setHeader( "Pragma",        "no-cache" );
-            response.setHeader( "Content-Type", "application/javascript" );
-            response.setHeader( "Connection",    "close" );
+    private static String buildScript()
+    {
+        final JSONObject jsonObject = new JSONObject();
 
-            // Write out the JSON object.
-            response.getOutputStream().println("var branding = " + jsonObject.toString( 2 ) + ";" );
+        for ( String propertyName : JiveGlobals.getPropertyNames() )
+        {
+            if ( propertyName.startsWith( PREFIX ) )
+            {
+                final String propertyValue = JiveGlobals.getProperty( propertyName );
+                Log.debug( "BrandingServlet - Found " + propertyName + " " + propertyValue );
 
+                try
+                {
+                    jsonObject.put( propertyName.substring( PREFIX.length() ), new JSONObject( propertyValue ) );
+                }
+                catch ( Exception e )
+                {
+                    Log.warn( "Ignoring property {}, as its value is not a JSON object.", propertyName, e );
+                }
+            }
         }
-        catch ( Exception e )
+
+        return "var branding = " + jsonObject.toString( 2 ) + ";\n";
+    }
+
+    private void invalidate( String property )
+    {
+        if ( property.startsWith( PREFIX ) )
         {
-            Log.error( "[{}] Failed to generate branding.js!", request.getRemoteAddr(), e );
+            Log.debug( "Property {} changed, discarding cached branding.js", property );
+            synchronized ( BrandingServlet.class )
+            {
+                generation++;
+                cached = null;
+            }
         }
     }
+
+    @Override
+    public void propertySet( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void propertyDeleted( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void xmlPropertySet( String property, Map<String, Object> params )
+    {
+    }
+
+    @Override
+    public void xmlPropertyDeleted( String property, Map<String, Object> params )
+    {
+    }
 }
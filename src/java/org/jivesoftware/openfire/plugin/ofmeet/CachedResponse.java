@@ -0,0 +1,175 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A generated response body that is rendered once and then served from memory, both as-is and
+ * gzip-compressed, with a strong ETag so that unchanged content is answered with a 304.
+ */
+public class CachedResponse
+{
+    private final byte[] body;
+    private final byte[] gzipped;
+    private final String etag;
+    private final String contentType;
+    private final long lastModified;
+    private final String cacheControl;
+    private final long created = System.currentTimeMillis();
+
+    public CachedResponse( String text, String contentType )
+    {
+        this( text.getBytes( StandardCharsets.UTF_8 ), contentType );
+    }
+
+    public CachedResponse( byte[] body, String contentType )
+    {
+        this( body, contentType, -1, "no-cache" );
+    }
+
+    /**
+     * @param lastModified when the content last changed (in milliseconds since the epoch), or -1 when unknown.
+     * @param cacheControl the value of the Cache-Control header.
+     */
+    public CachedResponse( byte[] body, String contentType, long lastModified, String cacheControl )
+    {
+        this.body = body;
+        this.gzipped = gzip( body );
+        this.etag = "\"" + digest( body ) + "\"";
+        this.contentType = contentType;
+        this.lastModified = lastModified;
+        this.cacheControl = cacheControl;
+    }
+
+    public String getETag()
+    {
+        return etag;
+    }
+
+    public long getCreated()
+    {
+        return created;
+    }
+
+    public byte[] getBody()
+    {
+        return body;
+    }
+
+    public long getLastModified()
+    {
+        return lastModified;
+    }
+
+    /**
+     * Writes this response, or a 304 when the client already has it. Unless told otherwise, the content
+     * may change whenever a property changes, so clients are told to revalidate on every use.
+     */
+    public void write( HttpServletRequest request, HttpServletResponse response ) throws IOException
+    {
+        final boolean useGzip = gzipped != null && acceptsGzip( request );
+        final String tag = useGzip ? etag.substring( 0, etag.length() - 1 ) + "-gzip\"" : etag;
+
+        response.setHeader( "ETag", tag );
+        response.setHeader( "Cache-Control", cacheControl );
+        response.setHeader( "Vary", "Accept-Encoding" );
+        if ( lastModified >= 0 ) response.setDateHeader( "Last-Modified", lastModified );
+
+        if ( isNotModified( request, tag ) )
+        {
+            response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+            return;
+        }
+
+        final byte[] content = useGzip ? gzipped : body;
+        response.setHeader( "Content-Type", contentType );
+        if ( useGzip ) response.setHeader( "Content-Encoding", "gzip" );
+        response.setContentLength( content.length );
+        response.getOutputStream().write( content );
+    }
+
+    private boolean isNotModified( HttpServletRequest request, String tag )
+    {
+        final String ifNoneMatch = request.getHeader( "If-None-Match" );
+        if ( ifNoneMatch != null ) return matches( ifNoneMatch, tag );
+
+        if ( lastModified < 0 ) return false;
+        try
+        {
+            final long ifModifiedSince = request.getDateHeader( "If-Modified-Since" );
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+        catch ( IllegalArgumentException e )
+        {
+            return false;
+        }
+    }
+
+    private static boolean acceptsGzip( HttpServletRequest request )
+    {
+        final String acceptEncoding = request.getHeader( "Accept-Encoding" );
+        return acceptEncoding != null && acceptEncoding.contains( "gzip" );
+    }
+
+    private static boolean matches( String ifNoneMatch, String tag )
+    {
+        if ( ifNoneMatch == null ) return false;
+        if ( ifNoneMatch.trim().equals( "*" ) ) return true;
+
+        for ( String candidate : ifNoneMatch.split( "," ) )
+        {
+            if ( candidate.trim().equals( tag ) ) return true;
+        }
+        return false;
+    }
+
+    private static byte[] gzip( byte[] body )
+    {
+        try
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream( body.length / 3 + 64 );
+            try ( GZIPOutputStream out = new GZIPOutputStream( bytes ) )
+            {
+                out.write( body );
+            }
+            final byte[] compressed = bytes.toByteArray();
+            return compressed.length < body.length ? compressed : null;
+        }
+        catch ( IOException e )
+        {
+            return null;
+        }
+    }
+
+    private static String digest( byte[] body )
+    {
+        try
+        {
+            final byte[] hash = MessageDigest.getInstance( "SHA-256" ).digest( body );
+            return Base64.getUrlEncoder().withoutPadding().encodeToString( hash ).substring( 0, 22 );
+        }
+        catch ( Exception e )
+        {
+            return Integer.toHexString( java.util.Arrays.hashCode( body ) );
+        }
+    }
+}
@@ -27,6 +27,8 @@ import org.igniterealtime.openfire.plugin.ofmeet.config.OFMeetConfig;
 import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.jivesoftware.util.Version;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -35,24 +37,26 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.ServletException;
-import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.net.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A servlet that generates a snippet of javascript (json) that is the 'config' variable, as used by the Jitsi
  * Meet webapplication.
  *
+ * The configuration only depends on properties, apart from the BOSH and websocket addresses that are derived from
+ * the address that the client used. It is therefore built once, and rendered once per client-facing address, after
+ * which it is served from memory. Any change to a related property discards the cached configuration.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
-public class ConfigServlet extends HttpServlet
+public class ConfigServlet extends HttpServlet implements PropertyEventListener
 {
     /*
         As compared to version 0.3 of OFMeet, various bits are missing:
@@ -65,12 +69,120 @@ public class ConfigServlet extends HttpServlet
     private static final Logger Log = LoggerFactory.getLogger( ConfigServlet.class );
     public static String globalConferenceId = null;
 
+    /**
+     * Property name prefixes that (might) influence the generated configuration.
+     */
+    private static final String[] RELATED_PROPERTY_PREFIXES = { "ofmeet.", "org.jitsi.", "org.ice4j.", "clustering.", "xmpp." };
+
+    /**
+     * The largest number of distinct client-facing addresses that a configuration is kept for.
+     */
+    private static final int MAX_RENDERED_ORIGINS = 32;
+
+    private static volatile CachedConfig cachedConfig = null;
+
+    /**
+     * Incremented by every invalidation, so that a configuration that was being built while a property changed is not
+     * cached.
+     */
+    private static long generation = 0;
+
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+        PropertyEventDispatcher.addListener( this );
+    }
+
+    @Override
+    public void destroy()
+    {
+        PropertyEventDispatcher.removeListener( this );
+        super.destroy();
+    }
+
     public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
     {
         try
         {
             Log.trace( "[{}] config requested.", request.getRemoteAddr() );
 
+            response.setCharacterEncoding( "UTF-8" );
+            getRendered( request ).write( request, response );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "OFMeetConfig doGet Error", e );
+        }
+    }
+
+    /**
+     * Returns config.js as served to the client that made this request, generating it when needed.
+     */
+    static CachedResponse getRendered( HttpServletRequest request ) throws Exception
+    {
+        CachedConfig cached = cachedConfig;
+        if ( cached == null || cached.isExpired() )
+        {
+            Log.debug( "Building config.js" );
+            final long current;
+            synchronized ( ConfigServlet.class )
+            {
+                current = generation;
+            }
+
+            cached = buildConfig();
+
+            synchronized ( ConfigServlet.class )
+            {
+                if ( generation == current )
+                {
+                    cachedConfig = cached;
+                }
+            }
+        }
+
+        final String origin = request.getScheme() + "://" + request.getServerName() + ":" + request.getServerPort();
+        CachedResponse rendered = cached.byOrigin.get( origin );
+        if ( rendered == null )
+        {
+            if ( cached.byOrigin.size() >= MAX_RENDERED_ORIGINS ) cached.byOrigin.clear();
+
+            rendered = new CachedResponse( render( cached, request ), "application/javascript" );
+            cached.byOrigin.put( origin, rendered );
+        }
+        return rendered;
+    }
+
+    /**
+     * Adds the parts of the configuration that depend on the address used by the client to the cached configuration.
+     */
+    private static String render( CachedConfig cached, HttpServletRequest request ) throws URISyntaxException
+    {
+        final String base = cached.json;
+        final StringBuilder script = new StringBuilder( base.length() + 256 );
+
+        script.append( "var config = " ).append( base, 0, base.lastIndexOf( '}' ) );
+        script.append( ",\"bosh\":" ).append( JSONObject.quote( new URI( request.getScheme(), null, request.getServerName(), request.getServerPort(), "/http-bind/", null, null).toString() ) );
+
+        if ( cached.websockets )
+        {
+            script.append( ",\"websocket\":" ).append( JSONObject.quote( new URI( "https".equals(request.getScheme()) ? "wss" : "ws", null, request.getServerName(), request.getServerPort(), "/ws/", null, null).toString() ) );
+            script.append( ",\"websocketKeepAliveUrl\":" ).append( JSONObject.quote( new URI( request.getScheme(), null, request.getServerName(), request.getServerPort(), "/keepalive/index.html", null, null).toString() ) );
+        }
+
+        script.append( "};\n" );
+        return script.toString();
+    }
+
+    /**
+     * Generates the request-independent part of the configuration.
+     */
+    private static CachedConfig buildConfig() throws Exception
+    {
+        final long start = System.currentTimeMillis();
+        try
+        {
             final OFMeetConfig ofMeetConfig = new OFMeetConfig();
 
             final String xmppDomain = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
@@ -78,10 +190,6 @@ public class ConfigServlet extends HttpServlet
 
             final JSONArray conferences = new JSONArray();
 
-            writeHeader( response );
-
-            ServletOutputStream out = response.getOutputStream();
-
             String recordingKey = null;
 
             int minHDHeight = JiveGlobals.getIntProperty( "org.jitsi.videobridge.ofmeet.min.hdheight", 540 );
@@ -109,7 +217,6 @@ public class ConfigServlet extends HttpServlet
             int startBitrate = JiveGlobals.getIntProperty( "org.jitsi.videobridge.ofmeet.start.bitrate", 800 );
             boolean logStats = JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.enable.stats.logging", false );
             String iceServers = JiveGlobals.getProperty( "org.jitsi.videobridge.ofmeet.iceservers", "" );
-            String xirsysUrl = JiveGlobals.getProperty( "ofmeet.xirsys.url", null );
             String etherpadBase = JiveGlobals.getProperty( "org.jitsi.videobridge.ofmeet.etherpad.url", null );
             boolean enableEtherpad = JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.enable.etherpad", true );
             boolean startEtherpad = JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.start.etherpad", false );
@@ -143,19 +250,13 @@ public class ConfigServlet extends HttpServlet
             boolean wsBridgeChannel = JiveGlobals.getBooleanProperty( "ofmeet.bridge.ws.channel", org.jitsi.util.OSUtils.IS_WINDOWS);	
 			
 			JSONArray codecPreferenceOrder = new JSONArray(JiveGlobals.getProperty( "ofmeet.codec.preference.order", "[ \"AV1\", \"VP9\", \"H264\", \"VP8\" ]"));
-			JSONArray mobileCodecPreferenceOrder = new JSONArray(JiveGlobals.getProperty( "ofmeet.codec.preference.order", "[ \"AV1\", \"VP9\", \"H264\", \"VP8\" ]"));
+			JSONArray mobileCodecPreferenceOrder = codecPreferenceOrder;
 
-            if ( xirsysUrl != null )
+            // Xirsys credentials are fetched in the background; never wait for the API here.
+            final String xirsysIceServers = XirsysIceServerProvider.getInstance().getIceServers();
+            if ( xirsysIceServers != null )
             {
-                Log.info( "OFMeetConfig. found xirsys Url " + xirsysUrl );
-
-                String xirsysJson = getHTML( xirsysUrl );
-                Log.info( "OFMeetConfig. got xirsys json " + xirsysJson );
-
-                JSONObject jsonObject = new JSONObject( xirsysJson );
-                iceServers = jsonObject.getString( "d" );
-
-                Log.info( "OFMeetConfig. got xirsys iceSevers " + iceServers );
+                iceServers = xirsysIceServers;
             }
 
             final JSONObject config = new JSONObject();
@@ -340,12 +441,6 @@ public class ConfigServlet extends HttpServlet
                 config.put( "globalConferenceId", globalConferenceId );
             }
             config.put( "disableRtx", ofMeetConfig.getDisableRtx() );
-            config.put( "bosh", new URI( request.getScheme(), null, request.getServerName(), request.getServerPort(), "/http-bind/", null, null) );
-            
-			if (websockets) {
-                config.put( "websocket", new URI( "https".equals(request.getScheme()) ? "wss" : "ws", null, request.getServerName(), request.getServerPort(), "/ws/", null, null) );
-                config.put( "websocketKeepAliveUrl", new URI( request.getScheme(), null, request.getServerName(), request.getServerPort(), "/keepalive/index.html", null, null) );				
-            }
 			
 			JSONObject bridgeChannel = new JSONObject();
 			bridgeChannel.put( "preferSctp", !wsBridgeChannel);				
@@ -384,58 +479,80 @@ public class ConfigServlet extends HttpServlet
                 config.put( "openSharedDocumentOnJoin", startEtherpad );
             }
 
-            out.println( "var config = " + config.toString( 2 ) + ";" );
+            return new CachedConfig( config.toString(), websockets, xirsysIceServers );
         }
-        catch ( Exception e )
+        finally
         {
-            Log.error( "OFMeetConfig doGet Error", e );
+            Log.debug( "Built config.js in {} ms", System.currentTimeMillis() - start );
         }
     }
 
-    private void writeHeader( HttpServletResponse response )
+    private void invalidate( String property )
     {
-        try
-        {
-            response.setHeader( "Expires", "Sat, 6 May 1995 12:00:00 GMT" );
-            response.setHeader( "Cache-Control", "no-store, no-cache, must-revalidate" );
-            response.addHeader( "Cache-Control", "post-check=0, pre-check=0" );
-            response.setHeader( "Pragma", "no-cache" );
-            response.setHeader( "Content-Type", "application/javascript" );
-            response.setHeader( "Connection", "close" );
-            response.setCharacterEncoding( "UTF-8" );
-        }
-        catch ( Exception e )
+        for ( String prefix : RELATED_PROPERTY_PREFIXES )
         {
-            Log.error( "OFMeetConfig writeHeader Error", e );
+            if ( property.startsWith( prefix ) )
+            {
+                Log.debug( "Property {} changed, discarding cached config.js", property );
+                synchronized ( ConfigServlet.class )
+                {
+                    generation++;
+                    cachedConfig = null;
+                }
+                return;
+            }
         }
     }
 
-    private String getHTML( String urlToRead )
+    @Override
+    public void propertySet( String property, Map<String, Object> params )
     {
-        URL url;
-        HttpURLConnection conn;
-        BufferedReader rd;
-        String line;
-        StringBuilder result = new StringBuilder();
+        invalidate( property );
+    }
 
-        try
+    @Override
+    public void propertyDeleted( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void xmlPropertySet( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void xmlPropertyDeleted( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    /**
+     * The request-independent configuration, and its renditions per client-facing address.
+     */
+    private static class CachedConfig
+    {
+        final String json;
+        final boolean websockets;
+        final String xirsysIceServers;
+        final Map<String, CachedResponse> byOrigin = new ConcurrentHashMap<>();
+
+        CachedConfig( String json, boolean websockets, String xirsysIceServers )
         {
-            url = new URL( urlToRead );
-            conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod( "GET" );
-            rd = new BufferedReader( new InputStreamReader( conn.getInputStream() ) );
-            while ( ( line = rd.readLine() ) != null )
-            {
-                result.append( line );
-            }
-            rd.close();
+            this.json = json;
+            this.websockets = websockets;
+            this.xirsysIceServers = xirsysIceServers;
         }
-        catch ( Exception e )
+
+        /**
+         * The Xirsys credentials are refreshed (or expire) without a property change. The provider hands out the same
+         * instance for as long as they are unchanged, so an identity check is enough.
+         */
+        boolean isExpired()
         {
-            Log.error( "getHTML", e );
+            return XirsysIceServerProvider.getInstance().getIceServers() != xirsysIceServers;
         }
-
-        return result.toString();
     }
 
     /**
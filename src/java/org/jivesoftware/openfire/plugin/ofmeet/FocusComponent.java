@@ -4,104 +4,161 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.jivesoftware.openfire.XMPPServer;
-import org.jivesoftware.openfire.SessionManager;
-import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.util.JiveGlobals;
 
-import org.xmpp.component.Component;
 import org.xmpp.component.AbstractComponent;
-import org.xmpp.component.ComponentException;
-import org.xmpp.component.ComponentManager;
-import org.xmpp.component.ComponentManagerFactory;
 
 import org.dom4j.Element;
+
 import org.xmpp.packet.*;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A component that relays the conference requests of clients to the focus user (jicofo), and the responses of the
+ * focus back to the clients.
+ *
+ * Every relayed request is given a stanza id of its own, by which the response of the focus is matched to the request,
+ * so that concurrent requests (also those of one client) do not get mixed up. A request that is not answered within
+ * 'ofmeet.focus.timeout' milliseconds is answered with a 'remote-server-timeout' error. No thread waits for a response:
+ * the client is answered from the completion of the request. When more than one focus is connected, the
+ * {@link FocusRouter} chooses the one that a request is relayed to.
+ */
 public class FocusComponent extends AbstractComponent
 {
     private static final Logger Log = LoggerFactory.getLogger(FocusComponent.class);
-	private HashMap<String, IQ> requests = new HashMap<>();
-	
+
+    /**
+     * The requests that were relayed to the focus and are waiting for its response, by the id of the relayed stanza.
+     */
+    private final Map<String, CompletableFuture<IQ>> requests = new ConcurrentHashMap<>();
+    private final String idPrefix = "ofmeet-focus-" + Long.toHexString(System.currentTimeMillis()) + "-";
+    private final AtomicLong sequence = new AtomicLong();
+
     public FocusComponent()
     {
-
+        super(JiveGlobals.getIntProperty("ofmeet.focus.component.threads", 17), JiveGlobals.getIntProperty("ofmeet.focus.component.queue", 1000), false);
     }
-	
+
     @Override public String getDescription()
     {
         return "Focus Component";
     }
-	
+
     @Override public String getName()
     {
         return "focus";
-    }	
+    }
 
     @Override protected void handleIQError(IQ iq)
     {
-		handleResult(iq);	
-	}
-	
+        handleResult(iq);
+    }
+
     @Override protected void handleIQResult(IQ iq)
     {
-		handleResult(iq);	
-	}
-	
+        handleResult(iq);
+    }
+
     @Override public IQ handleIQSet(IQ iq)
     {
-		return handleSet(iq);
-	}
+        return handleSet(iq);
+    }
 
     @Override public IQ handleIQGet(IQ iq)
     {
-		return handleSet(iq);
-	}		
-	
+        return handleSet(iq);
+    }
+
+    @Override protected void preComponentShutdown()
+    {
+        for (CompletableFuture<IQ> request : requests.values()) {
+            request.cancel(false);
+        }
+        requests.clear();
+    }
+
     private void handleResult(IQ iq)
-    {	
-        Log.debug("handleResult got \n"+ iq.toString());	
-		
-        try {	
-			JID to = iq.getTo();
-			String from = to.getResource();
-
-			IQ iq1 = iq.createCopy();			
-			iq1.setTo(from);
-			iq1.setFrom("focus." + XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-			requests.put(from, iq1);
+    {
+        Log.debug("handleResult got \n{}", iq);
+
+        final CompletableFuture<IQ> request = iq.getID() == null ? null : requests.remove(iq.getID());
+        if (request == null) {
+            Log.debug("handleResult ignores a response to an unknown (or expired) request: {}", iq.getID());
+            return;
         }
-        catch(Exception e) {
-            Log.error("handleResult", e);
-        }		
-	}		
+        request.complete(iq);
+    }
 
+    /**
+     * Relays a request to the focus. The client is answered once the focus responds or the request times out, so
+     * this always returns null.
+     */
     private IQ handleSet(IQ iq)
     {
-        Log.debug("handleSet got \n"+ iq.toString());
-			
-        try {				
-			String from = iq.getFrom().toString();
-			String to = "focus@" + XMPPServer.getInstance().getServerInfo().getXMPPDomain() + "/focus";
-			
-			for (ClientSession sess : SessionManager.getInstance().getSessions("focus") )
-			{
-				to = sess.getAddress().toString();	
-			}
-			IQ iq1 = iq.createCopy();		
-			iq1.setTo(to);
-			iq1.setFrom("focus." + XMPPServer.getInstance().getServerInfo().getXMPPDomain() + "/" + from);
-			XMPPServer.getInstance().getIQRouter().route( iq1 );
-			Log.debug("handleSet forwarded \n"+ iq1.toString());	
-			
-			while (!requests.containsKey(from)) Thread.sleep(1000);
-			IQ iq2 = requests.remove(from);
-			Log.debug("handleSet sent \n"+ iq2.toString());			
-			return iq2;
+        Log.debug("handleSet got \n{}", iq);
+
+        final String id = idPrefix + sequence.incrementAndGet();
+        final CompletableFuture<IQ> request = new CompletableFuture<>();
+        requests.put(id, request);
+
+        final Element child = iq.getChildElement();
+        final JID focus = FocusRouter.getInstance().acquire(child == null ? null : child.attributeValue("room"));
+
+        request.orTimeout(JiveGlobals.getLongProperty("ofmeet.focus.timeout", 15000), TimeUnit.MILLISECONDS).whenComplete((response, failure) ->
+        {
+            requests.remove(id);
+            if (focus != null) FocusRouter.getInstance().release(focus);
+
+            final IQ reply;
+            if (failure == null) {
+                reply = response.createCopy();
+                reply.setID(iq.getID());
+                reply.setTo(iq.getFrom());
+                reply.setFrom(iq.getTo());
+            }
+            else if (failure instanceof TimeoutException) {
+                Log.warn("handleSet timed out waiting for the focus to respond to {}", iq.getFrom());
+                reply = error(iq, PacketError.Condition.remote_server_timeout);
+            }
+            else if (failure instanceof CancellationException) {
+                return; // The component is shutting down.
+            }
+            else {
+                Log.error("handleSet", failure);
+                reply = error(iq, PacketError.Condition.internal_server_error);
+            }
+
+            Log.debug("handleSet sent \n{}", reply);
+            send(reply);
+        });
+
+        try {
+            final JID to = focus != null ? focus : new JID(FocusRouter.FOCUS_USER, XMPPServer.getInstance().getServerInfo().getXMPPDomain(), "focus");
+
+            IQ iq1 = iq.createCopy();
+            iq1.setID(id);
+            iq1.setTo(to);
+            iq1.setFrom("focus." + XMPPServer.getInstance().getServerInfo().getXMPPDomain() + "/" + iq.getFrom());
+            XMPPServer.getInstance().getIQRouter().route( iq1 );
+            Log.debug("handleSet forwarded \n{}", iq1);
         }
         catch(Exception e) {
-            Log.error("handleSet", e);
-        }				
-		
+            request.completeExceptionally(e);
+        }
         return null;
-    }	
+    }
+
+    private static IQ error(IQ iq, PacketError.Condition condition)
+    {
+        final IQ reply = IQ.createResultIQ(iq);
+        if (iq.getChildElement() != null) reply.setChildElement(iq.getChildElement().createCopy());
+        reply.setError(condition);
+        return reply;
+    }
 }
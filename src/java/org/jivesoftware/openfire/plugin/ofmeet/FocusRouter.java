@@ -0,0 +1,217 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.jivesoftware.openfire.SessionManager;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the sessions of the focus user (one for every jicofo instance), and chooses the instance that a
+ * conference request is relayed to by the {@link FocusComponent}.
+ *
+ * The sessions are kept up to date by the session events that OfMeetPlugin receives. Sessions on other cluster nodes do
+ * not cause such events, so the view is also rebuilt from the SessionManager when the cluster membership changes and
+ * when it is older than 'ofmeet.focus.routing.refresh' milliseconds.
+ *
+ * With more than one instance, the 'ofmeet.focus.routing.strategy' property determines the choice:
+ * <ul>
+ *     <li>'room' (the default) always sends the requests for one room to the same instance (by rendezvous hashing of
+ *     the room), so that a conference is not set up twice. Requests without a room go to the least busy instance.</li>
+ *     <li>'least-outstanding' sends every request to the instance with the fewest unanswered requests.</li>
+ * </ul>
+ */
+public class FocusRouter
+{
+    private static final Logger Log = LoggerFactory.getLogger( FocusRouter.class );
+
+    private static final FocusRouter INSTANCE = new FocusRouter();
+
+    public static FocusRouter getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The name of the user that jicofo logs in as.
+     */
+    public static final String FOCUS_USER = "focus";
+
+    private final Map<JID, AtomicInteger> outstanding = new ConcurrentHashMap<>();
+    private volatile List<JID> sessions = Collections.emptyList();
+    private volatile long rebuilt = 0;
+
+    private FocusRouter()
+    {
+    }
+
+    /**
+     * Returns the address of the focus instance that a request for a room should go to, or null when no instance is
+     * connected. Every address that is returned must be passed to {@link #release(JID)} once the request is answered.
+     *
+     * @param room the room that the request is about (can be null).
+     */
+    public JID acquire( String room )
+    {
+        List<JID> candidates = sessions;
+        if ( candidates.isEmpty() || System.currentTimeMillis() - rebuilt > JiveGlobals.getLongProperty( "ofmeet.focus.routing.refresh", 60000 ) )
+        {
+            rebuild();
+            candidates = sessions;
+        }
+
+        if ( candidates.isEmpty() )
+        {
+            return null;
+        }
+
+        final JID result;
+        if ( candidates.size() == 1 )
+        {
+            result = candidates.get( 0 );
+        }
+        else if ( room != null && !"least-outstanding".equals( JiveGlobals.getProperty( "ofmeet.focus.routing.strategy", "room" ) ) )
+        {
+            result = byRoom( candidates, room );
+        }
+        else
+        {
+            result = leastOutstanding( candidates );
+        }
+
+        outstanding.computeIfAbsent( result, jid -> new AtomicInteger() ).incrementAndGet();
+        return result;
+    }
+
+    public void release( JID focus )
+    {
+        final AtomicInteger count = outstanding.get( focus );
+        if ( count != null ) count.decrementAndGet();
+    }
+
+    /**
+     * Discards the view and rebuilds it from the sessions that currently exist (on any cluster node).
+     */
+    public void rebuild()
+    {
+        final List<JID> result = new ArrayList<>();
+        for ( final ClientSession session : SessionManager.getInstance().getSessions( FOCUS_USER ) )
+        {
+            if ( session.getAddress().getResource() != null ) result.add( session.getAddress() );
+        }
+
+        sessions = Collections.unmodifiableList( result );
+        rebuilt = System.currentTimeMillis();
+        outstanding.keySet().retainAll( result );
+        Log.debug( "Found {} focus sessions", result.size() );
+    }
+
+    public void clear()
+    {
+        sessions = Collections.emptyList();
+        rebuilt = 0;
+        outstanding.clear();
+    }
+
+    public void sessionAvailable( Session session )
+    {
+        final JID address = session.getAddress();
+        if ( isFocus( address ) && !sessions.contains( address ) )
+        {
+            synchronized ( this )
+            {
+                final List<JID> result = new ArrayList<>( sessions );
+                if ( !result.contains( address ) ) result.add( address );
+                sessions = Collections.unmodifiableList( result );
+            }
+        }
+    }
+
+    public void sessionDestroyed( Session session )
+    {
+        final JID address = session.getAddress();
+        if ( isFocus( address ) && sessions.contains( address ) )
+        {
+            synchronized ( this )
+            {
+                final List<JID> result = new ArrayList<>( sessions );
+                result.remove( address );
+                sessions = Collections.unmodifiableList( result );
+            }
+            outstanding.remove( address );
+        }
+    }
+
+    private static boolean isFocus( JID address )
+    {
+        return address != null && address.getResource() != null && FOCUS_USER.equals( address.getNode() )
+            && XMPPServer.getInstance().isLocal( address );
+    }
+
+    /**
+     * Rendezvous hashing: every room has a preferred instance, and only the rooms of an instance that goes away move
+     * to another.
+     */
+    private static JID byRoom( List<JID> candidates, String room )
+    {
+        JID result = null;
+        long highest = Long.MIN_VALUE;
+        for ( final JID candidate : candidates )
+        {
+            final long weight = mix( ( (long) room.hashCode() << 32 ) ^ candidate.toString().hashCode() );
+            if ( result == null || weight > highest )
+            {
+                result = candidate;
+                highest = weight;
+            }
+        }
+        return result;
+    }
+
+    private JID leastOutstanding( List<JID> candidates )
+    {
+        JID result = null;
+        int lowest = Integer.MAX_VALUE;
+        for ( final JID candidate : candidates )
+        {
+            final AtomicInteger count = outstanding.get( candidate );
+            final int value = count == null ? 0 : count.get();
+            if ( value < lowest )
+            {
+                result = candidate;
+                lowest = value;
+            }
+        }
+        return result;
+    }
+
+    private static long mix( long value )
+    {
+        value = ( value ^ ( value >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+        value = ( value ^ ( value >>> 27 ) ) * 0x94d049bb133111ebL;
+        return value ^ ( value >>> 31 );
+    }
+}
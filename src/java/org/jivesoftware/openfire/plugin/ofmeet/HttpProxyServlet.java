@@ -7,94 +7,368 @@
 
 package org.jivesoftware.openfire.plugin.ofmeet;
 
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.Request;
+import org.eclipse.jetty.client.Response;
+import org.eclipse.jetty.client.Result;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.io.Content;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLConnection;
-
-
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+/**
+ * Proxies documents (typically PDFs that are shared in a meeting) from the URL in the 'url' parameter.
+ *
+ * Requests are proxied asynchronously over a shared HTTP client, so a slow origin does not hold on to a servlet thread.
+ * Connect, idle and total timeouts apply, as does a limit on the number of concurrent requests. The status, content
+ * type and caching headers of the origin are passed through, as are Range requests, so that large documents can be
+ * fetched in parts. Optionally, complete responses are kept in a bounded on-disk {@link ProxyCache}.
+ */
 public class HttpProxyServlet extends HttpServlet
 {
     private static final Logger Log = LoggerFactory.getLogger(HttpProxyServlet.class);
     public static final long serialVersionUID = 24362462L;
 
+    /**
+     * Request headers that are passed on to the origin.
+     */
+    private static final Set<String> REQUEST_HEADERS = Set.of( "accept", "accept-language", "range", "if-range", "if-none-match", "if-modified-since" );
+
+    /**
+     * Response headers that are passed on from the origin.
+     */
+    private static final Set<String> RESPONSE_HEADERS = Set.of( "content-type", "content-length", "content-range", "content-disposition", "content-language", "accept-ranges", "etag", "last-modified", "cache-control", "expires" );
+
+    private transient HttpClient httpClient;
+    private transient Semaphore permits;
+    private transient ProxyCache cache;
+
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+
+        try
+        {
+            httpClient = new HttpClient();
+            httpClient.setConnectTimeout( JiveGlobals.getLongProperty( "ofmeet.proxy.connect.timeout", 10000 ) );
+            httpClient.setIdleTimeout( JiveGlobals.getLongProperty( "ofmeet.proxy.idle.timeout", 30000 ) );
+            httpClient.setMaxConnectionsPerDestination( JiveGlobals.getIntProperty( "ofmeet.proxy.max.connections.per.destination", 16 ) );
+            httpClient.setFollowRedirects( true );
+            httpClient.start();
+        }
+        catch ( Exception e )
+        {
+            throw new ServletException( "Unable to start the HTTP client of the proxy.", e );
+        }
+
+        permits = new Semaphore( JiveGlobals.getIntProperty( "ofmeet.proxy.max.concurrent", 32 ) );
+
+        if ( JiveGlobals.getBooleanProperty( "ofmeet.proxy.cache.enabled", false ) )
+        {
+            try
+            {
+                cache = new ProxyCache(
+                    Paths.get( JiveGlobals.getProperty( "ofmeet.proxy.cache.dir", Paths.get( System.getProperty( "java.io.tmpdir" ), "ofmeet-proxy-cache" ).toString() ) ),
+                    JiveGlobals.getLongProperty( "ofmeet.proxy.cache.max.size", 512L * 1024 * 1024 ),
+                    JiveGlobals.getLongProperty( "ofmeet.proxy.cache.max.entry.size", 64L * 1024 * 1024 ),
+                    JiveGlobals.getLongProperty( "ofmeet.proxy.cache.ttl", 3600000 ) );
+            }
+            catch ( IOException e )
+            {
+                Log.warn( "Unable to create the proxy cache. Proxying without it.", e );
+            }
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        try
+        {
+            httpClient.stop();
+        }
+        catch ( Exception e )
+        {
+            Log.warn( "Unable to stop the HTTP client of the proxy.", e );
+        }
+
+        if ( cache != null ) cache.clear();
+        super.destroy();
+    }
+
     public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
 
+        final String url = request.getParameter("url");
+        Log.debug("HttpProxy - doGet {}", url);
+
+        final URI uri;
         try {
-            Log.info("HttpProxy - doGet start");
+            uri = url == null ? null : URI.create(url);
+        }
+        catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
 
-            String url = request.getParameter("url");
+        if (uri == null || !("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
 
-            if (url != null) {
-                writeHeader(url, response);
-                writeGet(url, response.getOutputStream());
+        final boolean ranged = request.getHeader("Range") != null;
+        if (cache != null) {
+            final ProxyCache.Entry entry = cache.get(url);
+            if (entry != null) {
+                Log.trace("HttpProxy - serving {} from cache", url);
+                entry.serve(request, response);
+                return;
             }
+        }
 
+        if (!permits.tryAcquire()) {
+            Log.debug("HttpProxy - too many concurrent requests, refusing {}", url);
+            response.setHeader("Retry-After", "5");
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
         }
-        catch(Exception e) {
-            Log.info("HttpProxy doGet Error: " + e.toString());
+
+        try {
+            final long timeout = JiveGlobals.getLongProperty("ofmeet.proxy.timeout", 120000);
+            final AsyncContext context = request.startAsync();
+            context.setTimeout(timeout + 5000);
+
+            // Range responses are partial, so only complete responses are worth storing.
+            final Exchange exchange = new Exchange(context, response, url, cache != null && !ranged);
+
+            final Request upstream = httpClient.newRequest(uri)
+                .timeout(timeout, TimeUnit.MILLISECONDS)
+                .headers(headers -> {
+                    for (String name : REQUEST_HEADERS) {
+                        final String value = request.getHeader(name);
+                        if (value != null) headers.put(name, value);
+                    }
+                })
+                .onResponseHeaders(exchange::onHeaders)
+                .onResponseContentAsync(exchange::onContent);
+
+            exchange.upstream = upstream;
+            context.addListener(exchange);
+            upstream.send(exchange::onComplete);
+        }
+        catch (Exception e) {
+            permits.release();
+            Log.info("HttpProxy doGet Error", e);
+            if (!response.isCommitted()) response.sendError(HttpServletResponse.SC_BAD_GATEWAY);
         }
     }
 
-
-    private void writeHeader(String urlString, HttpServletResponse response)
+    /**
+     * Copies one response from the origin to the client, using non-blocking writes. More content is demanded from the
+     * origin only when the client is ready to receive it, so a slow client does not make the proxy buffer a document.
+     */
+    private class Exchange implements WriteListener, AsyncListener
     {
+        private final AsyncContext context;
+        private final HttpServletResponse response;
+        private final String url;
+        private final boolean cacheable;
 
-        try {
-            response.setHeader("Expires", "Sat, 6 May 1995 12:00:00 GMT");
-            response.setHeader("Cache-Control", "no-store, no-cache, must-revalidate");
-            response.addHeader("Cache-Control", "post-check=0, pre-check=0");
-            response.setHeader("Pragma", "no-cache");
+        volatile Request upstream;
+        private ServletOutputStream out;
+        private ProxyCache.Writer cacheWriter;
+        private byte[] pending;
+        private Runnable demander;
+        private boolean complete = false;
+        private boolean finished = false;
+
+        Exchange(AsyncContext context, HttpServletResponse response, String url, boolean cacheable)
+        {
+            this.context = context;
+            this.response = response;
+            this.url = url;
+            this.cacheable = cacheable;
+        }
 
-            if (urlString.endsWith(".pdf"))
-                response.setHeader("Content-Type", "application/pdf");
-            else
-                response.setHeader("Content-Type", "text/html");
+        synchronized void onHeaders(Response upstreamResponse)
+        {
+            response.setStatus(upstreamResponse.getStatus());
+
+            for (HttpField field : upstreamResponse.getHeaders()) {
+                if (RESPONSE_HEADERS.contains(field.getLowerCaseName())) {
+                    response.addHeader(field.getName(), field.getValue());
+                }
+            }
+
+            if (upstreamResponse.getHeaders().get("Content-Type") == null) {
+                response.setHeader("Content-Type", url.toLowerCase(Locale.ROOT).endsWith(".pdf") ? "application/pdf" : "text/html");
+            }
+
+            if (cacheable && upstreamResponse.getStatus() == HttpServletResponse.SC_OK) {
+                final HttpFields headers = upstreamResponse.getHeaders();
+                final String cacheControl = headers.contains("Cache-Control") ? String.join(", ", headers.getValuesList("Cache-Control")) : null;
+                cacheWriter = cache.begin(url, response.getHeader("Content-Type"), headers.get("ETag"), headers.get("Last-Modified"), cacheControl, headers.get("Expires"), headers.get("Date"), headers.getLongField("Content-Length"));
+            }
 
-            response.setHeader("Connection", "close");
+            try {
+                out = response.getOutputStream();
+                out.setWriteListener(this);
+            }
+            catch (IOException e) {
+                upstreamResponse.abort(e);
+            }
         }
-        catch(Exception e)
+
+        synchronized void onContent(Response upstreamResponse, Content.Chunk chunk, Runnable demander)
         {
-            Log.info("HttpProxy writeHeader Error: " + e.toString());
+            final ByteBuffer buffer = chunk.getByteBuffer();
+            final byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+
+            if (cacheWriter != null) {
+                try {
+                    cacheWriter.write(bytes);
+                }
+                catch (IOException e) {
+                    Log.debug("HttpProxy - not caching {}", url, e);
+                    cacheWriter.abort();
+                    cacheWriter = null;
+                }
+            }
+
+            this.pending = bytes;
+            this.demander = demander;
+            flush();
         }
-    }
 
+        synchronized void onComplete(Result result)
+        {
+            if (result.isFailed()) {
+                final Throwable failure = result.getFailure();
+                Log.info("HttpProxy - unable to proxy {}: {}", url, failure.toString());
 
-    private void writeGet(String urlString, ServletOutputStream out)
-    {
-        byte[] buffer = new byte[4096];
+                if (cacheWriter != null) {
+                    cacheWriter.abort();
+                    cacheWriter = null;
+                }
 
-        try{
-            URL url = new URL(urlString);
-            URLConnection urlConn = url.openConnection();
-            InputStream inStream = urlConn.getInputStream();
-            int n = -1;
+                if (!response.isCommitted()) {
+                    response.reset();
+                    response.setStatus(failure instanceof TimeoutException ? HttpServletResponse.SC_GATEWAY_TIMEOUT : HttpServletResponse.SC_BAD_GATEWAY);
+                }
+                finish();
+                return;
+            }
 
-            while ( (n = inStream.read(buffer)) != -1)
-            {
-                out.write(buffer, 0, n);
+            if (cacheWriter != null) {
+                cacheWriter.commit();
+                cacheWriter = null;
             }
 
-            out.close();
+            complete = true;
+            flush();
+        }
+
+        @Override
+        public synchronized void onWritePossible()
+        {
+            flush();
+        }
 
-        } catch(MalformedURLException e){
-            Log.info("HttpProxy writeGet MalformedURLException", e);
+        @Override
+        public synchronized void onError(Throwable t)
+        {
+            Log.debug("HttpProxy - client went away while proxying {}", url, t);
 
-        } catch(IOException  e1){
-            Log.info("HttpProxy writeGet IOException", e1);
+            if (upstream != null) upstream.abort(t);
+            if (cacheWriter != null) {
+                cacheWriter.abort();
+                cacheWriter = null;
+            }
+            finish();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event)
+        {
+            onError(new TimeoutException("Proxy request timed out"));
+        }
+
+        @Override
+        public void onError(AsyncEvent event)
+        {
+            onError(event.getThrowable());
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event)
+        {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event)
+        {
+        }
+
+        /**
+         * Writes what is pending, then asks the origin for more, or ends the exchange when all was written.
+         */
+        private void flush()
+        {
+            if (finished || out == null) return;
+
+            try {
+                if (pending != null) {
+                    if (!out.isReady()) return;
+                    out.write(pending);
+                    pending = null;
+                }
+
+                if (demander != null) {
+                    if (!out.isReady()) return;
+                    final Runnable next = demander;
+                    demander = null;
+                    next.run();
+                    return;
+                }
+
+                if (complete && out.isReady()) {
+                    finish();
+                }
+            }
+            catch (IOException e) {
+                onError(e);
+            }
+        }
+
+        private void finish()
+        {
+            if (finished) return;
+            finished = true;
 
-        } catch (Exception e2) {
-            Log.info("HttpProxy - writeGet Exception", e2);
+            permits.release();
+            context.complete();
         }
     }
-}
\ No newline at end of file
+}
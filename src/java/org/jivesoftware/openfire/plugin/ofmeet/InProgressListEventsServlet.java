@@ -0,0 +1,471 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A servlet that streams the meetings in progress as Server-Sent Events, as an alternative to polling
+ * inProgressList.json.
+ *
+ * A client first receives a 'snapshot' event with the same meetings that inProgressList.json lists (without their
+ * duration, which a client can compute from their date). After that, it receives 'delta' events that list the meetings
+ * that started, changed or ended. Changes are coalesced: the meeting index is inspected at most once per
+ * 'ofmeet.inprogresslist.events.interval' milliseconds, and one delta is sent to all clients that share a base address.
+ *
+ * Events are written without blocking: every client has a queue of at most 'ofmeet.inprogresslist.events.queue.size'
+ * events, that is written whenever its connection can take more. A client that does not keep up, and lets its queue
+ * overflow, is disconnected (and will reconnect, to start over with a snapshot).
+ */
+public class InProgressListEventsServlet extends HttpServlet
+{
+    private static final Logger Log = LoggerFactory.getLogger( InProgressListEventsServlet.class );
+
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final AtomicInteger clients = new AtomicInteger();
+
+    private ScheduledExecutorService executor;
+    private long lastRefresh = 0;
+    private long lastKeepAlive = 0;
+
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+
+        executor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            final Thread thread = new Thread( runnable, "ofmeet-inprogresslist-events" );
+            thread.setDaemon( true );
+            return thread;
+        });
+
+        final long interval = JiveGlobals.getLongProperty( "ofmeet.inprogresslist.events.interval", 2000 );
+        executor.scheduleWithFixedDelay( this::tick, interval, interval, TimeUnit.MILLISECONDS );
+    }
+
+    @Override
+    public void destroy()
+    {
+        executor.shutdownNow();
+
+        for ( final Group group : groups.values() )
+        {
+            group.close();
+        }
+        groups.clear();
+        super.destroy();
+    }
+
+    public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
+    {
+        Log.trace( "[{}] conference events requested.", request.getRemoteAddr() );
+
+        if ( clients.incrementAndGet() > JiveGlobals.getIntProperty( "ofmeet.inprogresslist.events.max.clients", 1000 ) )
+        {
+            clients.decrementAndGet();
+            response.setHeader( "Retry-After", "60" );
+            response.sendError( HttpServletResponse.SC_SERVICE_UNAVAILABLE );
+            return;
+        }
+
+        Client client = null;
+        try
+        {
+            // Meeting URLs are relative to the page that lists them. Without a referer, use this servlet's location,
+            // which is in the same directory as the meetings.
+            String url = request.getHeader( "referer" );
+            if ( url == null || url.trim().isEmpty() )
+            {
+                url = request.getRequestURL().toString();
+            }
+            final URL requestUrl = new URL( url );
+
+            response.setCharacterEncoding( "UTF-8" );
+            response.setHeader( "Content-Type",  "text/event-stream" );
+            response.setHeader( "Cache-Control", "no-cache" );
+            response.setHeader( "X-Accel-Buffering", "no" );
+
+            final AsyncContext context = request.startAsync();
+            context.setTimeout( 0 );
+
+            client = new Client( context, response.getOutputStream() );
+            final Client listener = client;
+            context.addListener( new AsyncListener()
+            {
+                @Override public void onComplete( AsyncEvent event ) { listener.close(); }
+                @Override public void onTimeout( AsyncEvent event ) { listener.close(); }
+                @Override public void onError( AsyncEvent event ) { listener.close(); }
+                @Override public void onStartAsync( AsyncEvent event ) {}
+            });
+            response.getOutputStream().setWriteListener( client );
+
+            // A group that was discarded as empty in the meantime does not take new clients; use a new one instead.
+            Group group;
+            do
+            {
+                group = groups.computeIfAbsent( requestUrl.toExternalForm(), base -> new Group( requestUrl ) );
+            }
+            while ( !group.subscribe( client ) );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "[{}] Failed to start meeting events!", request.getRemoteAddr(), e );
+            if ( client != null )
+            {
+                client.close();
+            }
+            else
+            {
+                clients.decrementAndGet();
+                if ( !response.isCommitted() ) response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+            }
+        }
+    }
+
+    private void tick()
+    {
+        try
+        {
+            final long now = System.currentTimeMillis();
+            final long version = MeetingIndex.getInstance().getVersion();
+
+            // Room configuration (public, password) can change without an event, so look again every now and then.
+            final boolean refresh = now - lastRefresh >= JiveGlobals.getLongProperty( "ofmeet.inprogresslist.events.refresh", 30000 );
+            if ( refresh ) lastRefresh = now;
+
+            final boolean keepAlive = now - lastKeepAlive >= JiveGlobals.getLongProperty( "ofmeet.inprogresslist.events.keepalive", 15000 );
+            if ( keepAlive ) lastKeepAlive = now;
+
+            for ( final Map.Entry<String, Group> entry : groups.entrySet() )
+            {
+                final Group group = entry.getValue();
+                if ( group.discardIfEmpty() )
+                {
+                    groups.remove( entry.getKey(), group );
+                    continue;
+                }
+
+                if ( refresh || group.version != version )
+                {
+                    group.update( version );
+                }
+                else if ( keepAlive )
+                {
+                    group.keepAlive();
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            Log.warn( "Failed to send meeting events.", e );
+        }
+    }
+
+    /**
+     * The clients that list meetings relative to the same base address, and therefore receive identical events.
+     */
+    private static class Group
+    {
+        private final URL base;
+        private final Set<Client> members = ConcurrentHashMap.newKeySet();
+        private Map<String, String> snapshot = null;
+        private boolean discarded = false;
+        private volatile long version = -1;
+
+        Group( URL base )
+        {
+            this.base = base;
+        }
+
+        /**
+         * Marks this group as discarded when it has no clients, after which it does not take new ones.
+         *
+         * @return true when this group was discarded.
+         */
+        synchronized boolean discardIfEmpty()
+        {
+            if ( members.isEmpty() )
+            {
+                discarded = true;
+            }
+            return discarded;
+        }
+
+        /**
+         * Queues the current meetings for a client, and adds the client to this group so that it receives the events
+         * that follow. Both happen under the lock that every event is queued under, so the snapshot precedes them.
+         *
+         * @return false when this group was discarded, and the client was not added.
+         */
+        synchronized boolean subscribe( Client client ) throws IOException
+        {
+            if ( discarded )
+            {
+                return false;
+            }
+
+            if ( snapshot == null )
+            {
+                version = MeetingIndex.getInstance().getVersion();
+                snapshot = generate();
+            }
+
+            final JSONArray meetings = new JSONArray();
+            for ( final String meeting : snapshot.values() )
+            {
+                meetings.put( new JSONObject( meeting ) );
+            }
+
+            client.group = this;
+            client.offer( ( "retry: 5000\nevent: snapshot\ndata: " + meetings + "\n\n" ).getBytes( StandardCharsets.UTF_8 ) );
+
+            members.add( client );
+            if ( client.closed )
+            {
+                // Closed before it was added, so it did not remove itself.
+                members.remove( client );
+            }
+            return true;
+        }
+
+        void unsubscribe( Client client )
+        {
+            members.remove( client );
+        }
+
+        synchronized void update( long version ) throws IOException
+        {
+            this.version = version;
+
+            final Map<String, String> current = generate();
+            final JSONArray started = new JSONArray();
+            final JSONArray changed = new JSONArray();
+            final JSONArray ended = new JSONArray();
+
+            for ( final Map.Entry<String, String> entry : current.entrySet() )
+            {
+                final String previous = snapshot == null ? null : snapshot.get( entry.getKey() );
+                if ( previous == null )
+                {
+                    started.put( new JSONObject( entry.getValue() ) );
+                }
+                else if ( !previous.equals( entry.getValue() ) )
+                {
+                    changed.put( new JSONObject( entry.getValue() ) );
+                }
+            }
+
+            if ( snapshot != null )
+            {
+                for ( final String room : snapshot.keySet() )
+                {
+                    if ( !current.containsKey( room ) ) ended.put( room );
+                }
+            }
+            snapshot = current;
+
+            if ( started.length() == 0 && changed.length() == 0 && ended.length() == 0 )
+            {
+                return;
+            }
+
+            final JSONObject delta = new JSONObject();
+            delta.put( "started", started );
+            delta.put( "changed", changed );
+            delta.put( "ended", ended );
+            broadcast( "event: delta\ndata: " + delta + "\n\n" );
+        }
+
+        synchronized void keepAlive()
+        {
+            broadcast( ": keepalive\n\n" );
+        }
+
+        void close()
+        {
+            for ( final Client client : members )
+            {
+                client.close();
+            }
+        }
+
+        private Map<String, String> generate() throws IOException
+        {
+            final Map<String, String> result = new HashMap<>();
+            for ( final Map.Entry<String, JSONObject> entry : InProgressListServlet.getMeetings( base, false ).entrySet() )
+            {
+                result.put( entry.getKey(), entry.getValue().toString() );
+            }
+            return result;
+        }
+
+        private void broadcast( String event )
+        {
+            final byte[] bytes = event.getBytes( StandardCharsets.UTF_8 );
+            for ( final Client client : members )
+            {
+                client.offer( bytes );
+            }
+        }
+    }
+
+    /**
+     * One connected client, and the events that are waiting to be written to it.
+     */
+    private class Client implements WriteListener
+    {
+        private final AsyncContext context;
+        private final ServletOutputStream out;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private final int capacity = JiveGlobals.getIntProperty( "ofmeet.inprogresslist.events.queue.size", 32 );
+        private boolean flushNeeded = false;
+        private volatile Group group;
+        private volatile boolean closed = false;
+
+        Client( AsyncContext context, ServletOutputStream out )
+        {
+            this.context = context;
+            this.out = out;
+        }
+
+        /**
+         * Queues an event, and writes what the connection can take. Disconnects the client when its queue is full.
+         */
+        void offer( byte[] event )
+        {
+            synchronized ( this )
+            {
+                if ( closed )
+                {
+                    return;
+                }
+
+                if ( queue.size() < capacity )
+                {
+                    queue.add( event );
+                    write();
+                    return;
+                }
+            }
+
+            Log.debug( "Dropping meeting events client that does not keep up." );
+            close();
+        }
+
+        @Override
+        public void onWritePossible()
+        {
+            synchronized ( this )
+            {
+                write();
+            }
+        }
+
+        @Override
+        public void onError( Throwable t )
+        {
+            Log.debug( "Dropping meeting events client.", t );
+            close();
+        }
+
+        /**
+         * Writes queued events for as long as the connection is ready for them. When it is not, the container calls
+         * {@link #onWritePossible()} once it is. Must be called while holding the lock of this client.
+         */
+        private void write()
+        {
+            try
+            {
+                while ( !closed && out.isReady() )
+                {
+                    if ( flushNeeded )
+                    {
+                        flushNeeded = false;
+                        out.flush();
+                        continue;
+                    }
+
+                    final byte[] event = queue.poll();
+                    if ( event == null )
+                    {
+                        return;
+                    }
+                    out.write( event );
+                    flushNeeded = true;
+                }
+            }
+            catch ( Exception e )
+            {
+                Log.debug( "Dropping meeting events client.", e );
+                close();
+            }
+        }
+
+        void close()
+        {
+            synchronized ( this )
+            {
+                if ( closed )
+                {
+                    return;
+                }
+                closed = true;
+                queue.clear();
+            }
+
+            clients.decrementAndGet();
+
+            final Group current = group;
+            if ( current != null )
+            {
+                current.unsubscribe( this );
+            }
+
+            try
+            {
+                context.complete();
+            }
+            catch ( Exception e )
+            {
+                Log.trace( "Unable to complete meeting events request.", e );
+            }
+        }
+    }
+}
@@ -14,7 +14,6 @@
 package org.jivesoftware.openfire.plugin.ofmeet;
 
 import org.apache.commons.lang3.StringUtils;
-import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.muc.*;
 import org.jivesoftware.util.JiveGlobals;
 import org.json.JSONArray;
@@ -28,16 +27,43 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.net.URL;
-import java.net.URLDecoder;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * A servlet that generates a snippet of json that is the 'conferences' variable, as used by the Jitsi
  * Meet webapplication.
  *
+ * The meetings are taken from the {@link MeetingIndex}, rather than by inspecting every room and occupant.
+ *
+ * Without query parameters, every meeting is listed. The list can be narrowed and paged with these parameters:
+ * <ul>
+ *     <li>q - only list meetings of which the name starts with this value (case-insensitive)</li>
+ *     <li>sort - 'name' (default), 'size' or 'start', prefixed with '-' for descending order</li>
+ *     <li>limit - the maximum number of meetings to return. When more are available, a 'Link' header with rel="next"
+ *         points to the next page</li>
+ *     <li>cursor - the (opaque) value from a previous 'Link' header, to continue after the previous page</li>
+ *     <li>size, participants, protection - 'false' to leave out information that the corresponding
+ *         'org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.enable*Info' property enables. These cannot enable
+ *         information that the property disables.</li>
+ * </ul>
+ *
+ * Responses carry a weak ETag, derived from the version of the meeting index, so that an unchanged list is answered
+ * with a 304 without being generated.
+ *
  * @author Cool0707, cool0707@gmail.com
  */
 public class InProgressListServlet extends HttpServlet
@@ -48,6 +74,8 @@ public class InProgressListServlet extends HttpServlet
     private static final long serialVersionUID = -9012313048172452140L;
     private static final Logger Log = LoggerFactory.getLogger( InProgressListServlet.class );
 
+    private static volatile Exclusions exclusions = new Exclusions( "", "" );
+
     public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
     {
         try
@@ -55,129 +83,336 @@ public class InProgressListServlet extends HttpServlet
             Log.trace( "[{}] conferences requested.", request.getRemoteAddr() );
 
             response.setCharacterEncoding( "UTF-8" );
-            response.setContentType( "UTF-8" );
 
-            final String url = (String) request.getHeader("referer");
-            // if (url == null) url = request.getRequestURL().toString();
+            // Meeting URLs are relative to the page that lists them. Without a referer, use this servlet's location,
+            // which is in the same directory as the meetings.
+            String url = request.getHeader("referer");
             if ((url == null) || (url.trim().isEmpty()))
             {
-              response.sendError(HttpServletResponse.SC_NOT_FOUND);
-              return;
+                url = request.getRequestURL().toString();
             }
             Log.debug("ofmeet base url: {}", url);
 
-            final String service = "conference"; //mainMuc.split(".")[0];
-            final List<MUCRoom> chatRooms = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(service).getActiveChatRooms();
+            final Query query = new Query( request );
+
+            // The list changes when the index does, or when a minute passes (durations are rounded to minutes). Room
+            // configuration changes raise no event, so these can take up to a minute to show.
+            final long version = MeetingIndex.getInstance().getVersion();
+            final long minute = System.currentTimeMillis() / 60000;
+            final Exclusions exclusions = getExclusions();
+            final String etag = "W/\"" + Long.toString( version, 36 ) + "-" + Long.toString( minute, 36 ) + "-"
+                + Integer.toHexString( Objects.hash( url, query.toString(), exclusions.rooms, exclusions.nicks ) ) + "\"";
+
+            response.setHeader( "ETag", etag );
+            response.setHeader( "Cache-Control", "no-cache" );
+            response.setHeader( "Vary", "Referer" );
+
+            if ( etag.equals( request.getHeader( "If-None-Match" ) ) )
+            {
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return;
+            }
+
+            final List<Listing> listings = list( new URL(url), true, query.sizeInfo, query.participantsInfo, query.protectionInfo, query.prefix );
+            listings.sort( query.comparator );
+
             final JSONArray meetings = new JSONArray();
-            final String[] excludedRoomNames = JiveGlobals.getProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.exclude", "").split(":");
-            final String[] excludedNickNames = JiveGlobals.getProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.excludeNicks", "").split(":");
-            final Boolean isSizeInfoEnabled = JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.enableSizeInfo", false);
-            final Boolean isParticipantsInfoEnabled = JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.enableParticipantsInfo", false);
-            final Boolean isProtectionInfoEnabled = JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.enableProtectionInfo", false);
-            final URL requestUrl = new URL(url);
-            final Date Now = new Date();
-            for (MUCRoom chatRoom : chatRooms)
-            {
-                final String roomName = chatRoom.getJID().getNode();
-                final String roomDecodedName = URLDecoder.decode(roomName, "UTF-8");
-
-                if ( roomName.equals("ofmeet") || roomName.equals("ofgasi") || !chatRoom.isPublicRoom() )
+            Listing last = null;
+            boolean more = false;
+            for ( final Listing listing : listings )
+            {
+                if ( query.after != null && query.comparator.compare( listing, query.after ) <= 0 )
                 {
                     continue;
                 }
-
-                boolean foundExclusion = false;
-                for ( String excludedRoomName : excludedRoomNames )
+                if ( meetings.length() >= query.limit )
                 {
-                    if ( !excludedRoomName.isEmpty() && roomDecodedName.toLowerCase().contains(excludedRoomName.toLowerCase()) )
-                    {
-                        foundExclusion = true;
-                        break;
-                    }
-                }
-                if ( foundExclusion )
-                {
-                    continue;
+                    more = true;
+                    break;
                 }
+                meetings.put( listing.entry );
+                last = listing;
+            }
 
+            if ( more )
+            {
+                response.setHeader( "Link", "<?" + query.next( last ) + ">; rel=\"next\"" );
+            }
+            response.setHeader( "Content-Type",  "application/json" );
 
-                final JSONArray members = new JSONArray();
-                List<String> nicks = new ArrayList<String>();
-                String focus = null;
-                for ( final MUCOccupant  occupant : chatRoom.getOccupants() )
-                {
-                    JID jid = occupant.getUserAddress();
-                    String nick = jid.getNode();
-
-                    if (nick.equals("focus"))
-                    {
-                        focus = jid.getResource();
-                    }
-                    else
-                    {
-                        foundExclusion = false;
-                        for ( String excludedNickName : excludedNickNames )
-                        {
-                            if ( !nick.isEmpty() && nick.equals(excludedNickName) )
-                            {
-                                foundExclusion = true;
-                                break;
-                            }
-                        }
-                        if ( foundExclusion )
-                        {
-                            continue;
-                        }
-
-                        final String bareJID = occupant.getUserAddress().toBareJID();
-                        final JSONObject member = new JSONObject();
-                        member.put("id", bareJID);
-                        members.put(member);
-                        nicks.add(nick);
-                    }
-                }
-                if (focus == null)
+            // Write out the JSON object.
+            response.getOutputStream().write( meetings.toString().getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "[{}] Failed to generate meeting list!", request.getRemoteAddr(), e );
+        }
+    }
+
+    /**
+     * Generates the listed meetings, keyed by room name.
+     *
+     * @param requestUrl the address of the page that lists the meetings, against which meeting URLs are resolved.
+     * @param withDuration whether to include the (ever-changing) duration of each meeting.
+     */
+    static Map<String, JSONObject> getMeetings( URL requestUrl, boolean withDuration ) throws MalformedURLException
+    {
+        final Map<String, JSONObject> meetings = new LinkedHashMap<>();
+        for ( final Listing listing : list( requestUrl, withDuration, isEnabled( "enableSizeInfo" ), isEnabled( "enableParticipantsInfo" ), isEnabled( "enableProtectionInfo" ), null ) )
+        {
+            meetings.put( listing.room, listing.entry );
+        }
+        return meetings;
+    }
+
+    private static boolean isEnabled( String info )
+    {
+        return JiveGlobals.getBooleanProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist." + info, false );
+    }
+
+    private static List<Listing> list( URL requestUrl, boolean withDuration, boolean isSizeInfoEnabled, boolean isParticipantsInfoEnabled, boolean isProtectionInfoEnabled, String prefix ) throws MalformedURLException
+    {
+        final List<Listing> meetings = new ArrayList<>();
+        final Exclusions exclusions = getExclusions();
+        final long now = System.currentTimeMillis();
+        for (MeetingIndex.Meeting meeting : MeetingIndex.getInstance().getMeetings())
+        {
+            final String roomName = meeting.getName();
+            final String roomDecodedName = meeting.getDecodedName();
+
+            if ( roomName.equals("ofmeet") || roomName.equals("ofgasi") || exclusions.isExcludedRoom( roomDecodedName ) )
+            {
+                continue;
+            }
+
+            if ( prefix != null && !roomDecodedName.regionMatches( true, 0, prefix, 0, prefix.length() ) )
+            {
+                continue;
+            }
+
+            // Room configuration changes do not raise a MUC event, so these are taken from the room itself.
+            final MUCRoom chatRoom = meeting.getRoom();
+            if ( chatRoom == null || !chatRoom.isPublicRoom() )
+            {
+                continue;
+            }
+
+            final JSONArray members = new JSONArray();
+            List<String> nicks = new ArrayList<String>();
+            for ( final JID jid : meeting.getParticipants() )
+            {
+                final String nick = jid.getNode() == null ? "" : jid.getNode();
+                if ( exclusions.isExcludedNick( nick ) )
                 {
                     continue;
                 }
 
+                final JSONObject member = new JSONObject();
+                member.put("id", jid.toBareJID());
+                members.put(member);
+                nicks.add(nick);
+            }
+
+            final JSONObject entry = new JSONObject();
+            final int size = members.length();
+            final long duration = now - meeting.getCreated();
+            final boolean hasPassword = ! StringUtils.isEmpty(chatRoom.getPassword());
+            final String title = roomDecodedName
+                               + ( isProtectionInfoEnabled && hasPassword ? " \uD83D\uDD12" :  "")
+                               + ( isSizeInfoEnabled && size > 0 ? " (" + Integer.toString(size) + ")" : "")
+                               + ( isParticipantsInfoEnabled ? " " + nicks.toString() : "");
+
+            entry.put( "room", roomDecodedName);
+            entry.put( "url", new URL(requestUrl, "./" + roomName).toString());
+            entry.put( "date", meeting.getCreated());
+            if ( withDuration ) entry.put( "duration", (duration/60000)*60000); // round down to minutes
+            entry.put( "name", title); // TODO: might be refactored to title in app.bundle.min.js
 
-                final JSONObject meeting = new JSONObject();
-                final int size = members.length();
-                final long duration = Now.getTime() - chatRoom.getCreationDate().getTime();
-                final boolean hasPassword = ! StringUtils.isEmpty(chatRoom.getPassword());
-                final String title = roomDecodedName
-                                   + ( isProtectionInfoEnabled && hasPassword ? " \uD83D\uDD12" :  "")
-                                   + ( isSizeInfoEnabled && size > 0 ? " (" + Integer.toString(size) + ")" : "")
-                                   + ( isParticipantsInfoEnabled ? " " + nicks.toString() : "");
+            if ( isSizeInfoEnabled ) entry.put( "size", size);
+            if ( isProtectionInfoEnabled) entry.put( "password", Boolean.toString(hasPassword));
+            if ( isParticipantsInfoEnabled) entry.put( "members", members);
 
-                meeting.put( "room", roomDecodedName);
-                meeting.put( "url", new URL(requestUrl, "./" + roomName).toString());
-                meeting.put( "date", chatRoom.getCreationDate().getTime());
-                meeting.put( "duration", (duration/60000)*60000); // round down to minutes
-                meeting.put( "name", title); // TODO: might be refactored to title in app.bundle.min.js
+            meetings.add( new Listing( roomDecodedName, meeting.getCreated(), size, entry ) );
+        }
+        return meetings;
+    }
 
-                if ( isSizeInfoEnabled ) meeting.put( "size", size);
-                if ( isProtectionInfoEnabled) meeting.put( "password", Boolean.toString(hasPassword));
-                if ( isParticipantsInfoEnabled) meeting.put( "members", members);
+    /**
+     * Returns the parsed exclusion properties, parsing them again only when their values changed.
+     */
+    private static Exclusions getExclusions()
+    {
+        final String rooms = JiveGlobals.getProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.exclude", "");
+        final String nicks = JiveGlobals.getProperty( "org.jitsi.videobridge.ofmeet.welcomepage.inprogresslist.excludeNicks", "");
 
-                meetings.put(meeting);
+        Exclusions current = exclusions;
+        if ( !current.rooms.equals( rooms ) || !current.nicks.equals( nicks ) )
+        {
+            current = new Exclusions( rooms, nicks );
+            exclusions = current;
+        }
+        return current;
+    }
+
+    private static class Exclusions
+    {
+        final String rooms;
+        final String nicks;
+        final String[] roomNames;
+        final Set<String> nickNames;
+
+        Exclusions( String rooms, String nicks )
+        {
+            this.rooms = rooms;
+            this.nicks = nicks;
+            this.roomNames = Arrays.stream( rooms.split(":") ).filter( name -> !name.isEmpty() ).map( name -> name.toLowerCase( Locale.ROOT ) ).toArray( String[]::new );
+            this.nickNames = new HashSet<>( Arrays.asList( nicks.split(":") ) );
+        }
+
+        boolean isExcludedRoom( String decodedName )
+        {
+            if ( roomNames.length == 0 ) return false;
+
+            final String name = decodedName.toLowerCase( Locale.ROOT );
+            for ( String excluded : roomNames )
+            {
+                if ( name.contains( excluded ) ) return true;
             }
+            return false;
+        }
 
-            // Add response headers that instruct not to cache this data.
-            response.setHeader( "Expires",       "Sat, 6 May 1995 12:00:00 GMT" );
-            response.setHeader( "Cache-Control", "no-store, no-cache, must-revalidate" );
-            response.addHeader( "Cache-Control", "post-check=0, pre-check=0" );
-            response.setHeader( "Pragma",        "no-cache" );
-            response.setHeader( "Content-Type",  "application/json" );
-            response.setHeader( "Connection",    "close" );
+        boolean isExcludedNick( String nick )
+        {
+            return !nick.isEmpty() && nickNames.contains( nick );
+        }
+    }
 
-            // Write out the JSON object.
-            response.getOutputStream().println(meetings.toString( 2 ));
+    /**
+     * A meeting as listed, with the values that it can be sorted on.
+     */
+    private static class Listing
+    {
+        final String room;
+        final long created;
+        final int size;
+        final JSONObject entry;
+
+        Listing( String room, long created, int size, JSONObject entry )
+        {
+            this.room = room;
+            this.created = created;
+            this.size = size;
+            this.entry = entry;
         }
-        catch ( Exception e )
+    }
+
+    /**
+     * The filtering, sorting and paging requested through query parameters.
+     */
+    private static class Query
+    {
+        final String prefix;
+        final String sort;
+        final Comparator<Listing> comparator;
+        final int limit;
+        final String cursor;
+        final Listing after;
+        final boolean sizeInfo;
+        final boolean participantsInfo;
+        final boolean protectionInfo;
+
+        Query( HttpServletRequest request )
         {
-            Log.error( "[{}] Failed to generate meeting list!", request.getRemoteAddr(), e );
+            final String q = request.getParameter( "q" );
+            prefix = q == null || q.trim().isEmpty() ? null : q.trim();
+
+            // Query parameters can leave information out, but never reveal what the administrator chose to hide.
+            sizeInfo = isEnabled( "enableSizeInfo" ) && !"false".equalsIgnoreCase( request.getParameter( "size" ) );
+            participantsInfo = isEnabled( "enableParticipantsInfo" ) && !"false".equalsIgnoreCase( request.getParameter( "participants" ) );
+            protectionInfo = isEnabled( "enableProtectionInfo" ) && !"false".equalsIgnoreCase( request.getParameter( "protection" ) );
+
+            String field = request.getParameter( "sort" );
+            final boolean descending = field != null && field.startsWith( "-" );
+            if ( descending ) field = field.substring( 1 );
+
+            Comparator<Listing> order;
+            if ( "size".equals( field ) && sizeInfo )
+            {
+                order = Comparator.comparingInt( listing -> listing.size );
+            }
+            else if ( "start".equals( field ) )
+            {
+                order = Comparator.comparingLong( listing -> listing.created );
+            }
+            else
+            {
+                field = "name";
+                order = Comparator.comparing( listing -> listing.room, String.CASE_INSENSITIVE_ORDER );
+            }
+            order = order.thenComparing( listing -> listing.room );
+            comparator = descending ? order.reversed() : order;
+            sort = ( descending ? "-" : "" ) + field;
+
+            int requestedLimit = Integer.MAX_VALUE;
+            try
+            {
+                final String value = request.getParameter( "limit" );
+                if ( value != null )
+                {
+                    final int max = JiveGlobals.getIntProperty( "ofmeet.inprogresslist.max.limit", 1000 );
+                    requestedLimit = Math.max( 1, Math.min( max, Integer.parseInt( value.trim() ) ) );
+                }
+            }
+            catch ( NumberFormatException e )
+            {
+                Log.debug( "Ignoring invalid limit '{}'", request.getParameter( "limit" ) );
+            }
+            limit = requestedLimit;
+
+            cursor = request.getParameter( "cursor" );
+            after = decode( cursor );
+        }
+
+        /**
+         * The query string for the page that follows the given, last listed meeting.
+         */
+        String next( Listing last )
+        {
+            final String encoded = Base64.getUrlEncoder().withoutPadding().encodeToString( ( last.created + "\n" + last.size + "\n" + last.room ).getBytes( StandardCharsets.UTF_8 ) );
+            return parameters() + "&cursor=" + encoded;
+        }
+
+        private static Listing decode( String cursor )
+        {
+            if ( cursor == null || cursor.isEmpty() ) return null;
+
+            try
+            {
+                final String[] parts = new String( Base64.getUrlDecoder().decode( cursor ), StandardCharsets.UTF_8 ).split( "\n", 3 );
+                return new Listing( parts[ 2 ], Long.parseLong( parts[ 0 ] ), Integer.parseInt( parts[ 1 ] ), null );
+            }
+            catch ( Exception e )
+            {
+                Log.debug( "Ignoring invalid cursor '{}'", cursor );
+                return null;
+            }
+        }
+
+        private String parameters()
+        {
+            final StringBuilder result = new StringBuilder( "sort=" ).append( sort );
+            if ( prefix != null ) result.append( "&q=" ).append( URLEncoder.encode( prefix, StandardCharsets.UTF_8 ) );
+            if ( limit != Integer.MAX_VALUE ) result.append( "&limit=" ).append( limit );
+            if ( !sizeInfo ) result.append( "&size=false" );
+            if ( !participantsInfo ) result.append( "&participants=false" );
+            if ( !protectionInfo ) result.append( "&protection=false" );
+            return result.toString();
+        }
+
+        @Override
+        public String toString()
+        {
+            return after == null ? parameters() : parameters() + "&cursor=" + cursor;
         }
     }
 }
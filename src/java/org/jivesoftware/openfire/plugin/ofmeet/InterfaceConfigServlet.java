@@ -17,6 +17,8 @@ package org.jivesoftware.openfire.plugin.ofmeet;
 
 import org.igniterealtime.openfire.plugin.ofmeet.config.OFMeetConfig;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -28,25 +30,94 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * A servlet that generates a snippet of javascript (json) that is the 'interfaceConfig' variable, as used by the Jitsi
  * Meet webapplication.
  *
+ * The script is generated once and served from memory until a property that might influence it changes.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
-public class InterfaceConfigServlet extends HttpServlet
+public class InterfaceConfigServlet extends HttpServlet implements PropertyEventListener
 {
     private static final Logger Log = LoggerFactory.getLogger( InterfaceConfigServlet.class );
 
+    /**
+     * Property name prefixes that (might) influence the generated configuration.
+     */
+    private static final String[] RELATED_PROPERTY_PREFIXES = { "ofmeet.", "org.jitsi." };
+
+    private static volatile CachedResponse cached = null;
+
+    /**
+     * Incremented by every invalidation, so that a script that was being built while a property changed is not cached.
+     */
+    private static long generation = 0;
+
+    @Override
+    public void init() throws ServletException
+    {
+        super.init();
+        PropertyEventDispatcher.addListener( this );
+    }
+
+    @Override
+    public void destroy()
+    {
+        PropertyEventDispatcher.removeListener( this );
+        super.destroy();
+    }
+
     public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
     {
         try
         {
             Log.trace( "[{}] interface_config requested.", request.getRemoteAddr() );
 
-            writeHeader( response );
+            response.setCharacterEncoding( "UTF-8" );
+            getRendered().write( request, response );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "[{}] Failed to generate interfaceconfig!", request.getRemoteAddr(), e );
+        }
+    }
+
+    /**
+     * Returns interface_config.js, generating it when needed.
+     */
+    static CachedResponse getRendered()
+    {
+        CachedResponse rendered = cached;
+        if ( rendered == null )
+        {
+            Log.debug( "Building interface_config.js" );
+            final long current;
+            synchronized ( InterfaceConfigServlet.class )
+            {
+                current = generation;
+            }
+
+            rendered = new CachedResponse( buildScript(), "application/javascript" );
+
+            synchronized ( InterfaceConfigServlet.class )
+            {
+                if ( generation == current )
+                {
+                    cached = rendered;
+                }
+            }
+        }
+        return rendered;
+    }
 
+    private static String buildScript()
+    {
+        final long start = System.currentTimeMillis();
+        try
+        {
             final OFMeetConfig ofMeetConfig = new OFMeetConfig();
             final JSONObject config = new JSONObject();
 
@@ -143,38 +214,52 @@ public class InterfaceConfigServlet extends HttpServlet
             final int remoteThumbnailRatioHeight = JiveGlobals.getIntProperty("org.jitsi.videobridge.ofmeet.remote.thumbnail.ratio.height",1 );
             config.put( "REMOTE_THUMBNAIL_RATIO", (double) remoteThumbnailRatioWidth / remoteThumbnailRatioHeight );
 
-            // Add response headers that instruct not to cache this data.
-            response.setHeader( "Expires",       "Sat, 6 May 1995 12:00:00 GMT" );
-            response.setHeader( "Cache-Control", "no-store, no-cache, must-revalidate" );
-            response.addHeader( "Cache-Control", "post-check=0, pre-check=0" );
-            response.setHeader( "Pragma",        "no-cache" );
-            response.setHeader( "Content-Type",  "application/javascript" );
-            response.setHeader( "Connection",    "close" );
-
-            // Write out the JSON object.
-            response.getOutputStream().println( "var interfaceConfig = " + config.toString( 2 ) + ";" );
+            return "var interfaceConfig = " + config.toString( 2 ) + ";\n";
         }
-        catch ( Exception e )
+        finally
         {
-            Log.error( "[{}] Failed to generate interfaceconfig!", request.getRemoteAddr(), e );
+            Log.debug( "Built interface_config.js in {} ms", System.currentTimeMillis() - start );
         }
     }
 
-    private void writeHeader( HttpServletResponse response )
+    private void invalidate( String property )
     {
-        try
-        {
-            response.setHeader( "Expires", "Sat, 6 May 1995 12:00:00 GMT" );
-            response.setHeader( "Cache-Control", "no-store, no-cache, must-revalidate" );
-            response.addHeader( "Cache-Control", "post-check=0, pre-check=0" );
-            response.setHeader( "Pragma", "no-cache" );
-            response.setHeader( "Content-Type", "application/javascript" );
-            response.setHeader( "Connection", "close" );
-            response.setCharacterEncoding( "UTF-8" );
-        }
-        catch ( Exception e )
+        for ( String prefix : RELATED_PROPERTY_PREFIXES )
         {
-            Log.error( "OFMeetConfig writeHeader Error", e );
+            if ( property.startsWith( prefix ) )
+            {
+                Log.debug( "Property {} changed, discarding cached interface_config.js", property );
+                synchronized ( InterfaceConfigServlet.class )
+                {
+                    generation++;
+                    cached = null;
+                }
+                return;
+            }
         }
     }
+
+    @Override
+    public void propertySet( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void propertyDeleted( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void xmlPropertySet( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void xmlPropertyDeleted( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
 }
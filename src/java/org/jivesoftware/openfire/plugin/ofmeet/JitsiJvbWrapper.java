@@ -78,8 +78,7 @@ public class JitsiJvbWrapper implements ProcessListener
         final String rest_port = JiveGlobals.getProperty( "ofmeet.videobridge.rest.port", "8188");
         final String public_port = JiveGlobals.getProperty( "httpbind.port.secure", "7443");
 
-        String plain_port = JiveGlobals.getProperty( "ofmeet.websockets.plainport", "8180");
-        if (rest_port.equals(plain_port)) plain_port = "8180";
+        final String plain_port = getPlainPort();
 
 		String local_ip = JiveGlobals.getProperty( PluginImpl.MANUAL_HARVESTER_LOCAL_PROPERTY_NAME, ipAddress);
         String public_ip = JiveGlobals.getProperty( PluginImpl.MANUAL_HARVESTER_PUBLIC_PROPERTY_NAME, ipAddress);
@@ -438,6 +437,38 @@ public class JitsiJvbWrapper implements ProcessListener
         }
     }
 
+    /**
+     * The port of the public http-server of the videobridge, at which it accepts (plain) colibri websockets. This is
+     * never the port of its private (REST) http-server.
+     */
+    public static String getPlainPort()
+    {
+        final String rest_port = JiveGlobals.getProperty( "ofmeet.videobridge.rest.port", "8188");
+        final String plain_port = JiveGlobals.getProperty( "ofmeet.websockets.plainport", "8180");
+        return rest_port.equals(plain_port) ? "8180" : plain_port;
+    }
+
+    /**
+     * The host:port at which the videobridge of this node accepts (plain) colibri websockets, as configured by
+     * {@link #initialize(PluginManager, File)}.
+     *
+     * @param ipAddress the address of this node, used when no other address is configured.
+     */
+    public static String getWebSocketAddress(String ipAddress)
+    {
+        String local_ip = JiveGlobals.getProperty( PluginImpl.MANUAL_HARVESTER_LOCAL_PROPERTY_NAME, ipAddress);
+
+        if (ClusterManager.isClusteringEnabled()) {
+            String localBoundIp = JiveGlobals.getXMLProperty("ofmeet.local_address");
+
+            if (localBoundIp != null && !localBoundIp.isEmpty()) {
+                local_ip = localBoundIp;
+            }
+        }
+
+        return JiveGlobals.getProperty( "ofmeet.videobridge.rest.host", local_ip) + ":" + getPlainPort();
+    }
+
     public String getIpAddress()
     {
         String ourHostname = XMPPServer.getInstance().getServerInfo().getHostname();
@@ -1,13 +1,14 @@
 package org.jivesoftware.openfire.plugin.ofmeet;
 
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * A filter that forwards URLs to the jitsi-meet welcome page.
@@ -32,50 +33,85 @@ import java.util.Set;
  * on any " followed by an exclusion of
  * patterns that match well-known file extensions (eg: css, javascript, images)
  *
+ * The excluded extensions ('ofmeet.redirect.excluded.extensions') and path prefixes
+ * ('ofmeet.redirect.excluded.prefixes') are read once, when the filter is initialized. Matching a request is then a
+ * handful of character comparisons on its URI, as this filter is in front of every asset that the webapp serves.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
 public class JitsiMeetRedirectFilter implements Filter
 {
     private static final Logger Log = LoggerFactory.getLogger( JitsiMeetRedirectFilter.class );
 
-    private final Set<String> excludedExtensions = new HashSet<>();
+    private static final List<String> DEFAULT_EXCLUDED_EXTENSIONS = Arrays.asList( "png", "gif", "jpg", "ico", "css", "json", "jsp", "js" );
+    private static final List<String> DEFAULT_EXCLUDED_PREFIXES = Arrays.asList( "webchat", "swagger", "win-sso", "dashboard", "apps" );
+
+    private String contextPath = "";
+    private String[] excludedExtensions = new String[ 0 ];
+    private String[] excludedPrefixes = new String[ 0 ];
 
     @Override
     public void init( FilterConfig filterConfig ) throws ServletException
     {
-        excludedExtensions.clear();
-        excludedExtensions.add( "png" );
-        excludedExtensions.add( "gif" );
-        excludedExtensions.add( "jpg" );
-        excludedExtensions.add( "ico" );
-        excludedExtensions.add( "css" );
-        excludedExtensions.add( "json" );
-        excludedExtensions.add( "jsp" );
-        excludedExtensions.add( "js" );
+        configure( filterConfig.getServletContext().getContextPath(),
+            JiveGlobals.getListProperty( "ofmeet.redirect.excluded.extensions", DEFAULT_EXCLUDED_EXTENSIONS ),
+            JiveGlobals.getListProperty( "ofmeet.redirect.excluded.prefixes", DEFAULT_EXCLUDED_PREFIXES ) );
     }
 
-    protected boolean hasCorrectContext( HttpServletRequest request )
+    /**
+     * Sets the context and the exclusions that requests are matched against.
+     */
+    void configure( String contextPath, List<String> extensions, List<String> prefixes )
     {
-        return request.getRequestURI().matches( request.getContextPath() + "/([^/]+)$" );
+        this.contextPath = contextPath;
+        excludedExtensions = toArray( extensions );
+        excludedPrefixes = toArray( prefixes );
     }
 
-    protected boolean containsExcludedExtension( HttpServletRequest request )
+    private static String[] toArray( List<String> values )
     {
-        final String uri = request.getRequestURI().toLowerCase();
-        for ( final String excludedExtension : excludedExtensions )
+        return values.stream().map( String::trim ).filter( value -> !value.isEmpty() ).map( value -> value.startsWith( "." ) || value.startsWith( "/" ) ? value.substring( 1 ) : value ).toArray( String[]::new );
+    }
+
+    /**
+     * Checks that the URI is a direct child of the context: the context path, a slash, and one (non-empty) segment.
+     */
+    protected boolean hasCorrectContext( String uri )
+    {
+        final int start = contextPath.length();
+        return uri.length() > start + 1
+            && uri.startsWith( contextPath )
+            && uri.charAt( start ) == '/'
+            && uri.indexOf( '/', start + 1 ) < 0;
+    }
+
+    /**
+     * Checks the (single) segment of a URI that passed {@link #hasCorrectContext(String)} against the excluded
+     * prefixes and extensions, ignoring case.
+     */
+    protected boolean containsExcludedExtension( String uri )
+    {
+        final int segment = contextPath.length() + 1;
+        for ( final String prefix : excludedPrefixes )
         {
-            if ( uri.endsWith( "." + excludedExtension ) || uri.contains( "." + excludedExtension + "?" ) )
+            if ( uri.regionMatches( true, segment, prefix, 0, prefix.length() ) )
             {
                 return true;
             }
         }
 
-        if (uri.contains("/webchat")) return true;
-        if (uri.contains("/swagger")) return true;
-        if (uri.contains("/win-sso")) return true;
-        if (uri.contains("/dashboard")) return true;
-        if (uri.contains("/apps")) return true;
-
+        final int dot = uri.lastIndexOf( '.' );
+        if ( dot >= segment )
+        {
+            final int length = uri.length() - dot - 1;
+            for ( final String extension : excludedExtensions )
+            {
+                if ( extension.length() == length && uri.regionMatches( true, dot + 1, extension, 0, length ) )
+                {
+                    return true;
+                }
+            }
+        }
         return false;
     }
 
@@ -85,17 +121,18 @@ public class JitsiMeetRedirectFilter implements Filter
         if ( servletRequest instanceof HttpServletRequest )
         {
             final HttpServletRequest request = (HttpServletRequest) servletRequest;
-            if ( !hasCorrectContext( request ) )
+            final String uri = request.getRequestURI();
+            if ( !hasCorrectContext( uri ) )
             {
-                Log.trace( "Not forwarding " + request.getRequestURI() + " (does not have correct context)." );
+                Log.trace( "Not forwarding {} (does not have correct context).", uri );
             }
-            else if ( containsExcludedExtension( request ) )
+            else if ( containsExcludedExtension( uri ) )
             {
-                Log.trace( "Not forwarding " + request.getRequestURI() + " (contains excluded extension)." );
+                Log.trace( "Not forwarding {} (contains excluded extension).", uri );
             }
             else
             {
-                Log.trace( "Forwarding " + request.getRequestURI() + " to /" );
+                Log.trace( "Forwarding {} to /", uri );
                 RequestDispatcher dispatcher = request.getRequestDispatcher( "/" );
                 dispatcher.forward( request, response );
                 return;
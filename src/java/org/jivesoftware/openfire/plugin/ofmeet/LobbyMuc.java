@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.disco.*;
@@ -24,6 +25,7 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
     private static final Logger Log = LoggerFactory.getLogger(LobbyMuc.class);
 
     private static final String MUC_NS = "http://jabber.org/protocol/muc";
+    private static final String MUC_OWNER_NS = "http://jabber.org/protocol/muc#owner";
     private static final String DISCO_INFO_NS = "http://jabber.org/protocol/disco#info";
     private static final String DISPLAY_NAME_REQUIRED_FEATURE = "http://jitsi.org/protocol/lobbyrooms#displayname_required";
     private static final String MUC_NAME = "conference";
@@ -37,9 +39,16 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
     private static final String MAIN_MUC = JiveGlobals.getProperty( "ofmeet.main.muc", MUC_NAME + "." + XMPPServer.getInstance().getServerInfo().getXMPPDomain());
     private static final String LOBBY_MUC = JiveGlobals.getProperty( "ofmeet.lobby.muc", LOBBY_NAME + "." + XMPPServer.getInstance().getServerInfo().getXMPPDomain());
 
+    private static final QName DATA_FORM = QName.get("x", "jabber:x:data");
+
     private MultiUserChatService mucService;
     private MultiUserChatService lobbyService;
 
+    /**
+     * Prebuilt 'muc#roominfo_lobbyroom' form fields, by room name. An entry is dropped when its room is reconfigured.
+     */
+    private final Map<String, Element> lobbyRoomFields = new ConcurrentHashMap<>();
+
     protected void initialize() throws Exception
     {
          if (!XMPPServer.getInstance().getMultiUserChatManager().isServiceRegistered(LOBBY_NAME)) {
@@ -126,19 +135,41 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
 
     private boolean isMembersOnly(Element childElement)
     {
-        boolean result = false;
-        Element formElement = childElement.element(QName.get("x", "jabber:x:data"));
+        Element formElement = childElement.element(DATA_FORM);
 
         if (formElement != null) {
-            DataForm completedForm = new DataForm(formElement);
-            FormField field = completedForm.getField("muc#roomconfig_membersonly");
+            final Iterator<Element> fields = formElement.elementIterator("field");
+
+            while (fields.hasNext()) {
+                final Element field = fields.next();
+                if ("muc#roomconfig_membersonly".equals(field.attributeValue("var"))) {
+                    final String value = field.elementTextTrim("value");
+                    return "1".equals( value ) || "true".equals( value );
+                }
+            }
+        }
+        return false;
+    }
 
-            if (field != null) {
-                final String value = field.getFirstValue();
-                if ( "1".equals( value ) || "true".equals( value ) ) result = true;
+    /**
+     * Returns a copy of the (cached) form field that announces the lobby room of a room in its disco#info.
+     */
+    private Element getLobbyRoomField(String roomName)
+    {
+        Element field = lobbyRoomFields.get(roomName);
+        if (field == null) {
+            if (lobbyRoomFields.size() >= JiveGlobals.getIntProperty("ofmeet.lobby.form.cache.size", 1000)) {
+                lobbyRoomFields.clear();
             }
+
+            field = DocumentHelper.createElement(QName.get("field", DATA_FORM.getNamespace()));
+            field.addAttribute("var", "muc#roominfo_lobbyroom");
+            field.addAttribute("type", FormField.Type.hidden.toXMPP());
+            field.addAttribute("label", "Lobby room jid");
+            field.addElement("value").setText(roomName + "@" + LOBBY_MUC);
+            lobbyRoomFields.put(roomName, field);
         }
-        return result;
+        return field.createCopy();
     }
 
     private boolean featureExists(Element element, String feature)
@@ -148,16 +179,47 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
         while (features.hasNext())
         {
             Element featureElement = features.next();
-            String featureVar = featureElement.attributeValue("var");
-            if (featureVar.equalsIgnoreCase(feature)) return true;
+            if (feature.equalsIgnoreCase(featureElement.attributeValue("var"))) return true;
         }
 
         return false;
     }
 
 
+    /**
+     * Decides, from addresses and stanza type alone, whether a packet can be of interest to the lobby. As this interceptor
+     * sees every stanza on the server, this spares the vast majority of them any inspection of their content.
+     */
+    private static boolean isRelevant(Packet packet)
+    {
+        if (!involvesLobby(packet.getTo()) && !involvesLobby(packet.getFrom())) {
+            return false;
+        }
+
+        if (packet instanceof Presence) {
+            final Presence.Type type = ((Presence) packet).getType();
+            return type == Presence.Type.error || type == Presence.Type.unavailable;
+        }
+
+        if (packet instanceof IQ) {
+            final Element childElement = ((IQ) packet).getChildElement();
+            if (childElement == null) return false;
+            final String namespace = childElement.getNamespaceURI();
+            return MUC_OWNER_NS.equals(namespace) || DISCO_INFO_NS.equals(namespace);
+        }
+
+        return packet instanceof Message;
+    }
+
+    private static boolean involvesLobby(JID address)
+    {
+        if (address == null) return false;
+        final String domain = address.getDomain();
+        return MAIN_MUC.equals(domain) || LOBBY_MUC.equals(domain);
+    }
+
     public void interceptPacket(Packet packet, Session session, boolean incoming, boolean processed) throws PacketRejectedException {
-        if (!processed && lobbyService != null) {
+        if (!processed && lobbyService != null && isRelevant(packet)) {
             if (packet instanceof IQ) {
                 interceptIQ((IQ) packet, session, incoming, processed);
             } else if (packet instanceof Presence) {
@@ -173,7 +235,9 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
         Element childElement = iq.getChildElement();
         if (childElement != null) {
             String namespace = childElement.getNamespaceURI();
-            if ("http://jabber.org/protocol/muc#owner".equals(namespace)) {
+            if (MUC_OWNER_NS.equals(namespace)) {
+                if (iq.getTo() != null && iq.getTo().getNode() != null) lobbyRoomFields.remove(iq.getTo().getNode());
+
                 if (isMembersOnly(childElement)) {
                     final String roomName = iq.getTo().getNode();
                     Log.debug("lobbyroom creating room " + roomName);
@@ -195,18 +259,16 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
                 } else {
                     notify_lobby_enabled(iq.getTo(), iq.getFrom(), false);
                 }
-            } else if ("http://jabber.org/protocol/disco#info".equals(namespace)) {
-                if (featureExists(childElement, "muc_membersonly") && iq.getType() == IQ.Type.result && !incoming
-                        && MAIN_MUC.equals(iq.getFrom().getDomain())) {
-                    Element formElement = childElement.element(QName.get("x", "jabber:x:data"));
+            } else if (DISCO_INFO_NS.equals(namespace)) {
+                if (iq.getType() == IQ.Type.result && !incoming && iq.getFrom() != null
+                        && MAIN_MUC.equals(iq.getFrom().getDomain()) && featureExists(childElement, "muc_membersonly")) {
+                    Element formElement = childElement.element(DATA_FORM);
 
                     if (formElement != null) {
                         Log.debug("lobbyroom updating room " + iq.getFrom() + " config with muc#roominfo_lobbyroom");
-                        DataForm form = new DataForm(formElement);
-                        form.addField("muc#roominfo_lobbyroom", "Lobby room jid", FormField.Type.hidden)
-                                .addValue(iq.getFrom().getNode() + "@" + LOBBY_MUC);
+                        formElement.add(getLobbyRoomField(iq.getFrom().getNode()));
                     }
-                } else if (iq.getType() == IQ.Type.get && LOBBY_MUC.equals(iq.getTo().toString())
+                } else if (iq.getType() == IQ.Type.get && iq.getTo() != null && LOBBY_MUC.equals(iq.getTo().toString())
                         && childElement.attribute("node") != null) {
                     if (childElement.attribute("node").getStringValue().equals(LOBBY_IDENTITY_TYPE)) {
                         Log.debug("lobbyroom remove node attribute from disco#info for " + LOBBY_MUC);
@@ -244,13 +306,16 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
                             JID roomJID = presence.getFrom();
 							
 							if (roomJID != null && roomJID.getNode() != null) {
-								MUCRoom room = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(roomJID).getChatRoom(roomJID.getNode());
-								List<Presence> addNonePresence = room.addNone(kicked, room.getSelfRepresentation().getAffiliation());
+								MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService(roomJID);
+								MUCRoom room = service == null ? null : service.getChatRoom(roomJID.getNode());
+
+								if (room != null) {
+									List<Presence> addNonePresence = room.addNone(kicked, room.getSelfRepresentation().getAffiliation());
 
-								// Send a presence to other room members
-								for (Presence p : addNonePresence) {
-									for ( final MUCOccupant  occupant : room.getOccupants() ) {
-										room.send(p, occupant);
+									// Send a presence to other room members. The room broadcasts a presence to all of
+									// its occupants itself, so each presence is sent once, rather than once per occupant.
+									for (Presence p : addNonePresence) {
+										room.send(p, room.getSelfRepresentation());
 									}
 								}
 							}
@@ -283,7 +348,7 @@ public class LobbyMuc implements ServerIdentitiesProvider, ServerFeaturesProvide
     protected void interceptMessage(Message message, Session session, boolean incoming, boolean processed) throws PacketRejectedException {
         Element childElement = message.getChildElement("x", "http://jabber.org/protocol/muc#user");
 
-        if (childElement != null && MAIN_MUC.equals(message.getTo().getDomain())) {
+        if (childElement != null && message.getTo() != null && MAIN_MUC.equals(message.getTo().getDomain())) {
             Element inviteElement = childElement.element("invite");
 
             if (inviteElement != null) {
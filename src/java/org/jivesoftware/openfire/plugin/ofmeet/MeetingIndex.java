@@ -0,0 +1,392 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.muc.MUCOccupant;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.openfire.muc.MultiUserChatService;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * An in-memory index of the meetings (MUC rooms) that are in progress on the 'conference' service, kept up to date
+ * by the MUC events that OfMeetPlugin receives, so that listing meetings does not need to walk every room and every
+ * occupant.
+ *
+ * The index is seeded from the rooms that exist when the plugin starts (or when the cluster membership changes), and
+ * is then maintained incrementally. Rooms on other cluster nodes do not cause such events, so the index is also rebuilt
+ * when it is older than 'ofmeet.meetings.index.refresh' milliseconds. A rebuild replaces the index as a whole (readers
+ * never see it half-built), and the events that arrive while it is being built are applied to the new index as well.
+ */
+public class MeetingIndex
+{
+    private static final Logger Log = LoggerFactory.getLogger( MeetingIndex.class );
+
+    private static final MeetingIndex INSTANCE = new MeetingIndex();
+
+    public static MeetingIndex getInstance()
+    {
+        return INSTANCE;
+    }
+
+    /**
+     * The subdomain of the MUC service on which meetings take place.
+     */
+    public static final String SERVICE = "conference";
+
+    private volatile Map<JID, Meeting> meetings = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final ReentrantLock rebuilding = new ReentrantLock();
+    private volatile boolean active = false;
+    private volatile long rebuilt = 0;
+
+    /**
+     * The changes made while the index is being rebuilt (null when it is not), guarded by this index.
+     */
+    private List<Predicate<Map<JID, Meeting>>> pending = null;
+
+    private MeetingIndex()
+    {
+    }
+
+    /**
+     * A number that changes every time a meeting is added, removed or changed, so that anything derived from the
+     * index knows when to be regenerated.
+     */
+    public long getVersion()
+    {
+        refreshIfStale();
+        return version.get();
+    }
+
+    /**
+     * Returns the meetings in which the focus (jicofo) is present, in no particular order.
+     */
+    public List<Meeting> getMeetings()
+    {
+        refreshIfStale();
+
+        final List<Meeting> result = new ArrayList<>();
+        for ( final Meeting meeting : meetings.values() )
+        {
+            if ( meeting.getFocus() != null )
+            {
+                result.add( meeting );
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rebuilds the index from the rooms that currently exist (on any cluster node), and replaces it.
+     */
+    public void rebuild()
+    {
+        rebuilding.lock();
+        try
+        {
+            synchronized ( this )
+            {
+                pending = new ArrayList<>();
+            }
+
+            final Map<JID, Meeting> result = new ConcurrentHashMap<>();
+            final MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService( SERVICE );
+            if ( service != null )
+            {
+                for ( final MUCRoom room : service.getActiveChatRooms() )
+                {
+                    final Meeting meeting = new Meeting( room.getJID(), room.getCreationDate().getTime() );
+                    for ( final MUCOccupant occupant : room.getOccupants() )
+                    {
+                        meeting.join( occupant.getNickname(), occupant.getUserAddress() );
+                    }
+                    result.put( room.getJID().asBareJID(), meeting );
+                }
+            }
+
+            final boolean changed;
+            synchronized ( this )
+            {
+                for ( final Predicate<Map<JID, Meeting>> change : pending )
+                {
+                    change.test( result );
+                }
+                pending = null;
+
+                changed = !isSame( meetings, result );
+                meetings = result;
+            }
+
+            rebuilt = System.currentTimeMillis();
+            active = true;
+            Log.debug( "Indexed {} meetings", result.size() );
+            if ( changed )
+            {
+                version.incrementAndGet();
+            }
+        }
+        finally
+        {
+            rebuilding.unlock();
+        }
+    }
+
+    public void clear()
+    {
+        rebuilding.lock();
+        try
+        {
+            synchronized ( this )
+            {
+                active = false;
+                meetings = new ConcurrentHashMap<>();
+            }
+            version.incrementAndGet();
+        }
+        finally
+        {
+            rebuilding.unlock();
+        }
+    }
+
+    public void roomCreated( JID roomJID )
+    {
+        if ( isIndexed( roomJID ) )
+        {
+            apply( index -> index.putIfAbsent( roomJID.asBareJID(), new Meeting( roomJID, System.currentTimeMillis() ) ) == null );
+        }
+    }
+
+    public void roomDestroyed( JID roomJID )
+    {
+        apply( index -> index.remove( roomJID.asBareJID() ) != null );
+    }
+
+    public void occupantJoined( JID roomJID, JID user, String nickname )
+    {
+        if ( isIndexed( roomJID ) )
+        {
+            apply( index -> {
+                index.computeIfAbsent( roomJID.asBareJID(), jid -> new Meeting( jid, System.currentTimeMillis() ) ).join( nickname, user );
+                return true;
+            } );
+        }
+    }
+
+    public void occupantLeft( JID roomJID, String nickname )
+    {
+        apply( index -> {
+            final Meeting meeting = index.get( roomJID.asBareJID() );
+            if ( meeting == null ) return false;
+            meeting.leave( nickname );
+            return true;
+        } );
+    }
+
+    public void nicknameChanged( JID roomJID, String oldNickname, String newNickname )
+    {
+        apply( index -> {
+            final Meeting meeting = index.get( roomJID.asBareJID() );
+            if ( meeting == null ) return false;
+            meeting.rename( oldNickname, newNickname );
+            return true;
+        } );
+    }
+
+    /**
+     * Applies a change to the index (and remembers it for the index that is being built, if any).
+     *
+     * @param change returns true when it changed the meetings.
+     */
+    private synchronized void apply( Predicate<Map<JID, Meeting>> change )
+    {
+        if ( pending != null )
+        {
+            pending.add( change );
+        }
+
+        if ( change.test( meetings ) )
+        {
+            version.incrementAndGet();
+        }
+    }
+
+    private void refreshIfStale()
+    {
+        if ( active && System.currentTimeMillis() - rebuilt > JiveGlobals.getLongProperty( "ofmeet.meetings.index.refresh", 60000 ) && rebuilding.tryLock() )
+        {
+            try
+            {
+                if ( active ) rebuild();
+            }
+            finally
+            {
+                rebuilding.unlock();
+            }
+        }
+    }
+
+    /**
+     * Whether two indexes list the same meetings, with the same focus and participants (in any order).
+     */
+    private static boolean isSame( Map<JID, Meeting> a, Map<JID, Meeting> b )
+    {
+        if ( a.size() != b.size() ) return false;
+
+        for ( final Map.Entry<JID, Meeting> entry : a.entrySet() )
+        {
+            final Meeting other = b.get( entry.getKey() );
+            if ( other == null
+                || !Objects.equals( entry.getValue().getFocus(), other.getFocus() )
+                || !new HashSet<>( entry.getValue().getParticipants() ).equals( new HashSet<>( other.getParticipants() ) ) )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isIndexed( JID roomJID )
+    {
+        return roomJID.getNode() != null && roomJID.getDomain().startsWith( SERVICE + "." );
+    }
+
+    /**
+     * A room on the conference service and the people in it.
+     */
+    public static class Meeting
+    {
+        private final JID roomJID;
+        private final String decodedName;
+        private final long created;
+        private final Map<String, JID> participants = new LinkedHashMap<>();
+        private String focusNickname;
+        private String focus;
+
+        Meeting( JID roomJID, long created )
+        {
+            this.roomJID = roomJID.asBareJID();
+            this.decodedName = URLDecoder.decode( roomJID.getNode(), StandardCharsets.UTF_8 );
+            this.created = created;
+        }
+
+        public JID getRoomJID()
+        {
+            return roomJID;
+        }
+
+        /**
+         * The (still encoded) node of the room JID.
+         */
+        public String getName()
+        {
+            return roomJID.getNode();
+        }
+
+        public String getDecodedName()
+        {
+            return decodedName;
+        }
+
+        public long getCreated()
+        {
+            return created;
+        }
+
+        /**
+         * The resource of the focus occupant, or null when the focus is not in the room.
+         */
+        public synchronized String getFocus()
+        {
+            return focus;
+        }
+
+        /**
+         * The real addresses of the occupants other than the focus, in order of joining.
+         */
+        public synchronized Collection<JID> getParticipants()
+        {
+            return participants.isEmpty() ? Collections.emptyList() : new ArrayList<>( participants.values() );
+        }
+
+        /**
+         * The room itself, for details that change without a MUC event (such as its configuration).
+         */
+        public MUCRoom getRoom()
+        {
+            final MultiUserChatService service = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatService( roomJID );
+            return service == null ? null : service.getChatRoom( roomJID.getNode() );
+        }
+
+        synchronized void join( String nickname, JID user )
+        {
+            if ( user == null ) return;
+
+            if ( "focus".equals( user.getNode() ) )
+            {
+                focusNickname = nickname;
+                focus = user.getResource();
+            }
+            else
+            {
+                participants.put( nickname, user );
+            }
+        }
+
+        synchronized void leave( String nickname )
+        {
+            if ( nickname != null && nickname.equals( focusNickname ) )
+            {
+                focusNickname = null;
+                focus = null;
+            }
+            else
+            {
+                participants.remove( nickname );
+            }
+        }
+
+        synchronized void rename( String oldNickname, String newNickname )
+        {
+            if ( oldNickname != null && oldNickname.equals( focusNickname ) )
+            {
+                focusNickname = newNickname;
+            }
+            else
+            {
+                final JID user = participants.remove( oldNickname );
+                if ( user != null ) participants.put( newNickname, user );
+            }
+        }
+    }
+}
@@ -34,6 +34,8 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.tomcat.InstanceManager;
 import org.apache.tomcat.SimpleInstanceManager;
 
+import org.jivesoftware.openfire.plugin.spark.BookmarkIndex;
+import org.jivesoftware.openfire.plugin.spark.BookmarkManager;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.muc.MultiUserChatService;
@@ -168,6 +170,7 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 			ensureJvbUser();
 			createConference("ofmeet");			
 			jitsiJvbWrapper.initialize( manager, pluginDirectory );			
+			BridgeRegistry.register(XMPPServer.getInstance().getServerInfo().getHostname(), getJvbAddress());
         }
         catch ( Exception ex )
         {
@@ -223,6 +226,7 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 				
         try
         {
+            XirsysIceServerProvider.getInstance().start();
             loadPublicWebApp();
 			
             ofmeetIQHandler = new OfMeetIQHandler();
@@ -233,6 +237,9 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
             SessionEventDispatcher.addListener(this);
             PropertyEventDispatcher.addListener(this);
             MUCEventDispatcher.addListener(this);
+            MeetingIndex.getInstance().rebuild();
+            FocusRouter.getInstance().rebuild();
+            BookmarkIndex.getInstance().start();
 			
         }
         catch ( Exception ex )
@@ -245,9 +252,14 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
     {		
         try
         {
+            BridgeRegistry.unregister(XMPPServer.getInstance().getServerInfo().getHostname());
             SessionEventDispatcher.removeListener(this);
             PropertyEventDispatcher.removeListener( this );
             MUCEventDispatcher.removeListener(this);
+            MeetingIndex.getInstance().clear();
+            FocusRouter.getInstance().clear();
+            BookmarkIndex.getInstance().stop();
+            BookmarkManager.destroyCache();
 
             unloadPublicWebApp();	
             XMPPServer.getInstance().getIQRouter().removeHandler(ofmeetIQHandler);			
@@ -256,6 +268,11 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
         {
             Log.error( "An exception occurred while trying to unload the public web application of OFMeet.", ex );
         }
+        finally
+        {
+            XirsysIceServerProvider.getInstance().stop();
+            QueuedThreadPoolProvider.stop();
+        }
 
 
         try
@@ -279,15 +296,23 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
         publicWebApp = new WebAppContext(null, pluginDirectory.getPath() + "/classes/jitsi-meet",  new OFMeetConfig().getWebappContextPath());
         publicWebApp.setClassLoader(this.getClass().getClassLoader());
         publicWebApp.getMimeTypes().addMimeMapping("wasm", "application/wasm");
+
+        // Serve the precompressed variants of static files (see StaticAssetPrecompressor) to clients that accept them.
+        publicWebApp.setInitParameter("org.eclipse.jetty.servlet.Default.precompressed", "br=.br,gzip=.gz");
+        publicWebApp.setInitParameter("org.eclipse.jetty.servlet.Default.etags", "true");
+        StaticAssetPrecompressor.start(Paths.get(pluginDirectory.getPath(), "classes", "jitsi-meet"));
 				
         HttpBindManager.getInstance().addJettyHandler( publicWebApp );
 		
+        WebSocketClientProvider.start();
+
         jvbWsContext = new ServletContextHandler(ServletContextHandler.SESSIONS);
         jvbWsContext.setContextPath("/colibri-ws");
 
         JettyWebSocketServletContainerInitializer.configure(jvbWsContext, (servletContext, wsContainer) ->
         {
-            wsContainer.setMaxTextMessageSize(65535);
+            wsContainer.setMaxTextMessageSize(WebSocketClientProvider.getMaxMessageSize());
+            wsContainer.setMaxBinaryMessageSize(WebSocketClientProvider.getMaxMessageSize());
             wsContainer.addMapping("/*", new JvbSocketCreator());
         });	
 
@@ -303,6 +328,7 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
         {
             try
             {
+                StaticAssetPrecompressor.stop();
                 HttpBindManager.getInstance().removeJettyHandler( publicWebApp );
                 publicWebApp.destroy();	
 
@@ -312,6 +338,7 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
             finally
             {
                 publicWebApp = null;
+                WebSocketClientProvider.stop();
             }
         }
     }
@@ -451,6 +478,14 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
         return ourIpAddress;
     }
 
+    /**
+     * The host:port at which the internal videobridge accepts (plain) colibri websockets.
+     */
+    public String getJvbAddress()
+    {
+        return JitsiJvbWrapper.getWebSocketAddress(getIpAddress());
+    }
+
     //-------------------------------------------------------
     //
     //      clustering
@@ -461,6 +496,7 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 	{
         try
         {
+            BridgeRegistry.unregister(XMPPServer.getInstance().getServerInfo().getHostname());
             if (jitsiJvbWrapper != null) 	jitsiJvbWrapper.destroy();
             if (jitsiJicofoWrapper != null) jitsiJicofoWrapper.destroy();
 			if (focusComponent != null) 	componentManager.removeComponent("focus");				
@@ -480,6 +516,8 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 		terminateJisti();
 		
 		setupJvb();		
+		MeetingIndex.getInstance().rebuild();
+		FocusRouter.getInstance().rebuild();
     }
 
     @Override
@@ -495,6 +533,8 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 		
 		setupJvb();
 		setupJicofo();			
+		MeetingIndex.getInstance().rebuild();
+		FocusRouter.getInstance().rebuild();
     }
 
     @Override
@@ -522,37 +562,37 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 
     public void roomCreated(JID roomJID)
     {
-
+        MeetingIndex.getInstance().roomCreated(roomJID);
     }
 
     public void roomDestroyed(JID roomJID)
     {
-				
+        MeetingIndex.getInstance().roomDestroyed(roomJID);
     }
 
     @Override
     public void occupantJoined(final JID roomJID, JID user, String nickname)
     {
-
+        MeetingIndex.getInstance().occupantJoined(roomJID, user, nickname);
     }
 
     @Override
     public void occupantLeft(final JID roomJID, JID user, String nickname)
     {
-
+        MeetingIndex.getInstance().occupantLeft(roomJID, nickname);
     }
 
 	
 	@Override
 	public void occupantNickKicked(JID roomJID, String nickname)
 	{
-		
+        MeetingIndex.getInstance().occupantLeft(roomJID, nickname);
 	}
 	
     @Override
     public void nicknameChanged(JID roomJID, JID user, String oldNickname, String newNickname)
     {
-
+        MeetingIndex.getInstance().nicknameChanged(roomJID, oldNickname, newNickname);
     }
 
     @Override
@@ -578,11 +618,11 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
     }
 
     public void roomCreated(long roomID, JID roomJID) {
-
+        MeetingIndex.getInstance().roomCreated(roomJID);
     }
 	
     public void roomDestroyed(long roomID, JID roomJID) {
-
+        MeetingIndex.getInstance().roomDestroyed(roomJID);
     }	
 	
     //-------------------------------------------------------
@@ -604,16 +644,19 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
     public void resourceBound(Session session)
     {
         Log.debug("OfMeet Plugin -  resourceBound "+ session.getAddress().toString() + "\n" + ((ClientSession) session).getPresence().toXML());
+        FocusRouter.getInstance().sessionAvailable(session);
     }
 
     public void sessionCreated(Session session)
     {
         Log.debug("OfMeet Plugin -  sessionCreated "+ session.getAddress().toString() + "\n" + ((ClientSession) session).getPresence().toXML());
+        FocusRouter.getInstance().sessionAvailable(session);
     }
 
     public void sessionDestroyed(Session session)
     {
         Log.debug("OfMeet Plugin -  sessionDestroyed "+ session.getAddress().toString() + "\n" + ((ClientSession) session).getPresence().toXML());
+        FocusRouter.getInstance().sessionDestroyed(session);
     }
 
     //-------------------------------------------------------
@@ -655,9 +698,6 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 	{		
         @Override public Object createWebSocket(JettyServerUpgradeRequest req, JettyServerUpgradeResponse resp)
         {
-			String ipaddr = JiveGlobals.getProperty( "ofmeet.videobridge.rest.host", OfMeetPlugin.self.getIpAddress());	
-            String jvbPort = JiveGlobals.getProperty( "ofmeet.websockets.plainport", "8180");
-
             HttpServletRequest request = req.getHttpServletRequest();
             String path = request.getRequestURI();
             String query = request.getQueryString();
@@ -672,11 +712,13 @@ public class OfMeetPlugin implements Plugin, SessionEventListener, ClusterEventL
 
             if (query != null) path += "?" + query;
 
-            Log.debug("JvbSocketCreator " + path + " " + query);
-            String url = "ws://" + ipaddr + ":" + jvbPort + path;
+            String bridge = BridgeRegistry.resolve(request.getRequestURI(), OfMeetPlugin.self.getJvbAddress());
+
+            Log.debug("JvbSocketCreator " + path + " " + query + " via " + bridge);
+            String url = "ws://" + bridge + path;
 
             ProxyWebSocket socket = null;
-            ProxyConnection proxyConnection = new ProxyConnection(URI.create(url), protocols, 10000);
+            ProxyConnection proxyConnection = new ProxyConnection(URI.create(url), protocols);
 
             socket = new ProxyWebSocket();
             socket.setProxyConnection(proxyConnection);
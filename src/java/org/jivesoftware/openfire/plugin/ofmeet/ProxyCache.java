@@ -0,0 +1,438 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A bounded, on-disk cache of documents fetched by the {@link HttpProxyServlet}, so that a document that is shared in
+ * a meeting is fetched from its origin once, rather than once for every participant.
+ *
+ * Only complete (200) responses of a known length are stored, unless the origin marks them as 'no-store', 'private' or
+ * 'no-cache', or as already stale. An entry expires when the origin says it does (s-maxage, max-age or Expires), but
+ * never later than the configured time, and the least recently used entries are evicted when the total size exceeds
+ * the configured maximum. The index is kept in memory only: the files that the cache wrote (recognised by
+ * their name prefix) are removed when the cache is created. Other files in the directory are left alone.
+ */
+class ProxyCache
+{
+    private static final Logger Log = LoggerFactory.getLogger( ProxyCache.class );
+
+    /**
+     * The prefix of the name of every file that the cache writes.
+     */
+    private static final String FILE_PREFIX = "ofmeet-proxy-";
+
+    private final Path directory;
+    private final long maxSize;
+    private final long maxEntrySize;
+    private final long ttl;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+    private long size = 0;
+
+    ProxyCache( Path directory, long maxSize, long maxEntrySize, long ttl ) throws IOException
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+        this.ttl = ttl;
+
+        Files.createDirectories( directory );
+        clear();
+    }
+
+    /**
+     * Returns the stored copy of a URL, or null when there is no (fresh) copy.
+     */
+    synchronized Entry get( String url )
+    {
+        final String key = key( url );
+        final Entry entry = entries.get( key );
+        if ( entry == null ) return null;
+
+        if ( System.currentTimeMillis() >= entry.expiresAt || !Files.exists( entry.file ) )
+        {
+            remove( key );
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Starts storing a response, or returns null when it cannot be stored.
+     */
+    Writer begin( String url, String contentType, String etag, String lastModified, String cacheControl, String expires, String date, long length )
+    {
+        if ( length < 0 || length > maxEntrySize || length > maxSize || !isStorable( cacheControl ) ) return null;
+
+        final long freshness = getFreshness( cacheControl, expires, date );
+        if ( freshness == 0 ) return null;
+
+        try
+        {
+            final long expiresAt = System.currentTimeMillis() + ( freshness < 0 ? ttl : Math.min( ttl, freshness ) );
+            return new Writer( url, contentType, etag, lastModified, cacheControl, expires, expiresAt, length );
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to store {} in the proxy cache.", url, e );
+            return null;
+        }
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+        size = 0;
+
+        try ( DirectoryStream<Path> files = Files.newDirectoryStream( directory, FILE_PREFIX + "*" ) )
+        {
+            for ( final Path file : files )
+            {
+                if ( Files.isRegularFile( file ) ) Files.deleteIfExists( file );
+            }
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to remove the cached files from the proxy cache directory {}", directory, e );
+        }
+    }
+
+    private synchronized void put( String key, Entry entry )
+    {
+        remove( key );
+        entries.put( key, entry );
+        size += entry.length;
+
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while ( size > maxSize && iterator.hasNext() )
+        {
+            final Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            size -= eldest.length;
+            delete( eldest.file );
+        }
+    }
+
+    private void remove( String key )
+    {
+        final Entry entry = entries.remove( key );
+        if ( entry != null )
+        {
+            size -= entry.length;
+            delete( entry.file );
+        }
+    }
+
+    private static void delete( Path file )
+    {
+        try
+        {
+            Files.deleteIfExists( file );
+        }
+        catch ( IOException e )
+        {
+            Log.debug( "Unable to delete {}", file, e );
+        }
+    }
+
+    /**
+     * Whether a response with this Cache-Control header may be stored by a shared cache.
+     */
+    static boolean isStorable( String cacheControl )
+    {
+        if ( cacheControl == null ) return true;
+
+        for ( final String directive : cacheControl.toLowerCase( Locale.ROOT ).split( "," ) )
+        {
+            final String name = directive.trim();
+            if ( name.equals( "no-store" ) || name.startsWith( "private" ) ) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long (in milliseconds) the origin allows a shared cache to reuse a response: zero when it must not be
+     * reused without revalidation, or -1 when the origin did not say.
+     */
+    static long getFreshness( String cacheControl, String expires, String date )
+    {
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        if ( cacheControl != null )
+        {
+            for ( final String directive : cacheControl.toLowerCase( Locale.ROOT ).split( "," ) )
+            {
+                final String name = directive.trim();
+                if ( name.startsWith( "no-cache" ) ) return 0;
+                if ( name.startsWith( "s-maxage=" ) ) sharedMaxAge = parseSeconds( name.substring( "s-maxage=".length() ) );
+                else if ( name.startsWith( "max-age=" ) ) maxAge = parseSeconds( name.substring( "max-age=".length() ) );
+            }
+        }
+
+        if ( sharedMaxAge >= 0 ) return sharedMaxAge * 1000;
+        if ( maxAge >= 0 ) return maxAge * 1000;
+        if ( expires == null ) return -1;
+
+        // An Expires value that cannot be parsed (like '0') means that the response is already stale.
+        final long expiresAt = parseDate( expires );
+        if ( expiresAt < 0 ) return 0;
+
+        final long dateAt = date == null ? -1 : parseDate( date );
+        return Math.max( 0, expiresAt - ( dateAt < 0 ? System.currentTimeMillis() : dateAt ) );
+    }
+
+    private static long parseSeconds( String value )
+    {
+        try
+        {
+            final long seconds = Long.parseLong( value.replace( "\"", "" ).trim() );
+            return Math.max( 0, Math.min( seconds, Long.MAX_VALUE / 1000 ) );
+        }
+        catch ( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+
+    private static long parseDate( String value )
+    {
+        try
+        {
+            return ZonedDateTime.parse( value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME ).toInstant().toEpochMilli();
+        }
+        catch ( RuntimeException e )
+        {
+            return -1;
+        }
+    }
+
+    private static String key( String url )
+    {
+        try
+        {
+            final byte[] hash = MessageDigest.getInstance( "SHA-256" ).digest( url.getBytes( StandardCharsets.UTF_8 ) );
+            final StringBuilder result = new StringBuilder( hash.length * 2 );
+            for ( final byte b : hash )
+            {
+                result.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ).append( Character.forDigit( b & 0xF, 16 ) );
+            }
+            return result.toString();
+        }
+        catch ( Exception e )
+        {
+            return Integer.toHexString( url.hashCode() );
+        }
+    }
+
+    /**
+     * A stored response.
+     */
+    static class Entry
+    {
+        final Path file;
+        final String contentType;
+        final String etag;
+        final String lastModified;
+        final String cacheControl;
+        final String expires;
+        final long expiresAt;
+        final long length;
+        final long stored = System.currentTimeMillis();
+
+        Entry( Path file, String contentType, String etag, String lastModified, String cacheControl, String expires, long expiresAt, long length )
+        {
+            this.file = file;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+            this.expires = expires;
+            this.expiresAt = expiresAt;
+            this.length = length;
+        }
+
+        /**
+         * Writes this entry as the response, honouring a single byte range.
+         */
+        void serve( HttpServletRequest request, HttpServletResponse response ) throws IOException
+        {
+            response.setHeader( "Accept-Ranges", "bytes" );
+            if ( contentType != null ) response.setHeader( "Content-Type", contentType );
+            if ( etag != null ) response.setHeader( "ETag", etag );
+            if ( lastModified != null ) response.setHeader( "Last-Modified", lastModified );
+            if ( cacheControl != null ) response.setHeader( "Cache-Control", cacheControl );
+            if ( expires != null ) response.setHeader( "Expires", expires );
+            response.setHeader( "Age", String.valueOf( ( System.currentTimeMillis() - stored ) / 1000 ) );
+
+            if ( etag != null && etag.equals( request.getHeader( "If-None-Match" ) ) )
+            {
+                response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+                return;
+            }
+
+            long start = 0;
+            long end = length - 1;
+
+            final String range = request.getHeader( "Range" );
+            final String ifRange = request.getHeader( "If-Range" );
+            if ( range != null && range.startsWith( "bytes=" ) && !range.contains( "," ) && ( ifRange == null || ifRange.equals( etag ) || ifRange.equals( lastModified ) ) )
+            {
+                try
+                {
+                    final String spec = range.substring( "bytes=".length() ).trim();
+                    final int dash = spec.indexOf( '-' );
+                    if ( dash == 0 )
+                    {
+                        start = Math.max( 0, length - Long.parseLong( spec.substring( 1 ) ) );
+                    }
+                    else
+                    {
+                        start = Long.parseLong( spec.substring( 0, dash ) );
+                        if ( dash < spec.length() - 1 ) end = Math.min( end, Long.parseLong( spec.substring( dash + 1 ) ) );
+                    }
+                }
+                catch ( RuntimeException e )
+                {
+                    start = 0;
+                    end = length - 1;
+                }
+
+                if ( start > end || start >= length )
+                {
+                    response.setHeader( "Content-Range", "bytes */" + length );
+                    response.setStatus( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+                    return;
+                }
+
+                response.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+                response.setHeader( "Content-Range", "bytes " + start + "-" + end + "/" + length );
+            }
+
+            final long count = end - start + 1;
+            response.setContentLengthLong( count );
+
+            try ( InputStream input = Files.newInputStream( file ) )
+            {
+                input.skipNBytes( start );
+
+                final OutputStream output = response.getOutputStream();
+                final byte[] buffer = new byte[ 16384 ];
+                long remaining = count;
+                while ( remaining > 0 )
+                {
+                    final int read = input.read( buffer, 0, (int) Math.min( buffer.length, remaining ) );
+                    if ( read < 0 ) break;
+                    output.write( buffer, 0, read );
+                    remaining -= read;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores a response while it is being proxied. Nothing is stored unless {@link #commit()} is called after all
+     * content was written.
+     */
+    class Writer
+    {
+        private final String key;
+        private final Path temporary;
+        private final OutputStream output;
+        private final String contentType;
+        private final String etag;
+        private final String lastModified;
+        private final String cacheControl;
+        private final String expires;
+        private final long expiresAt;
+        private final long length;
+        private long written = 0;
+
+        private Writer( String url, String contentType, String etag, String lastModified, String cacheControl, String expires, long expiresAt, long length ) throws IOException
+        {
+            this.key = key( url );
+            this.temporary = Files.createTempFile( directory, FILE_PREFIX + key, ".tmp" );
+            this.output = Files.newOutputStream( temporary );
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.cacheControl = cacheControl;
+            this.expires = expires;
+            this.expiresAt = expiresAt;
+            this.length = length;
+        }
+
+        void write( byte[] bytes ) throws IOException
+        {
+            written += bytes.length;
+            if ( written > length ) throw new IOException( "Response is longer than announced." );
+            output.write( bytes );
+        }
+
+        void commit()
+        {
+            try
+            {
+                output.close();
+                if ( written != length )
+                {
+                    abort();
+                    return;
+                }
+
+                final Path file = directory.resolve( FILE_PREFIX + key + "-" + System.nanoTime() );
+                Files.move( temporary, file, StandardCopyOption.ATOMIC_MOVE );
+                put( key, new Entry( file, contentType, etag, lastModified, cacheControl, expires, expiresAt, length ) );
+            }
+            catch ( IOException e )
+            {
+                Log.warn( "Unable to store a response in the proxy cache.", e );
+                abort();
+            }
+        }
+
+        void abort()
+        {
+            try
+            {
+                output.close();
+            }
+            catch ( IOException e )
+            {
+                Log.trace( "Unable to close {}", temporary, e );
+            }
+            delete( temporary );
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.ifsoft.websockets.ProxyMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * A servlet that returns the colibri-ws proxy metrics as json. It is part of the admin console, so
+ * only authenticated administrators can read it.
+ */
+public class ProxyMetricsServlet extends HttpServlet
+{
+    private static final Logger Log = LoggerFactory.getLogger( ProxyMetricsServlet.class );
+
+    public void doGet( HttpServletRequest request, HttpServletResponse response ) throws ServletException, IOException
+    {
+        try
+        {
+            Log.trace( "[{}] proxy metrics requested.", request.getRemoteAddr() );
+
+            response.setCharacterEncoding( "UTF-8" );
+            response.setHeader( "Cache-Control", "no-store, no-cache, must-revalidate" );
+            response.setHeader( "Content-Type",  "application/json" );
+
+            response.getOutputStream().println( ProxyMetrics.toJSON().toString() );
+        }
+        catch ( Exception e )
+        {
+            Log.error( "[{}] Failed to generate proxy metrics!", request.getRemoteAddr(), e );
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.jivesoftware.util.JiveGlobals;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+
+/**
+ * Sets the caching headers of the static files of the jitsi-meet webapp.
+ *
+ * The pages of the webapp refer to their scripts and stylesheets with a version parameter (eg: 'all.css?v=7882') that
+ * changes with every release. Such versioned requests are cached as immutable, so that browsers do not revalidate them
+ * on a repeat visit. Other static files are cached for 'ofmeet.static.max.age' seconds, after which they are revalidated
+ * using the ETag or Last-Modified header of the default servlet.
+ *
+ * Only successful (200) responses, and the 304 responses that revalidate them, are made cacheable. The header is
+ * removed again when the response turns out to be an error, so that a transient failure is not cached by browsers.
+ */
+public class StaticAssetCacheFilter implements Filter
+{
+    private String versionedCacheControl;
+    private String unversionedCacheControl;
+
+    @Override
+    public void init( FilterConfig filterConfig ) throws ServletException
+    {
+        versionedCacheControl = "public, max-age=" + JiveGlobals.getLongProperty( "ofmeet.static.immutable.max.age", 31536000 ) + ", immutable";
+        unversionedCacheControl = "public, max-age=" + JiveGlobals.getLongProperty( "ofmeet.static.max.age", 3600 );
+    }
+
+    @Override
+    public void doFilter( ServletRequest servletRequest, ServletResponse servletResponse, FilterChain filterChain ) throws IOException, ServletException
+    {
+        if ( servletRequest instanceof HttpServletRequest && servletResponse instanceof HttpServletResponse )
+        {
+            final HttpServletRequest request = (HttpServletRequest) servletRequest;
+            final String method = request.getMethod();
+            if ( "GET".equals( method ) || "HEAD".equals( method ) )
+            {
+                final CacheableResponse response = new CacheableResponse( (HttpServletResponse) servletResponse );
+                response.setHeader( "Cache-Control", request.getParameter( "v" ) != null ? versionedCacheControl : unversionedCacheControl );
+                try
+                {
+                    filterChain.doFilter( servletRequest, response );
+                }
+                catch ( IOException | ServletException | RuntimeException e )
+                {
+                    response.uncacheable();
+                    throw e;
+                }
+                return;
+            }
+        }
+
+        filterChain.doFilter( servletRequest, servletResponse );
+    }
+
+    @Override
+    public void destroy()
+    {
+    }
+
+    /**
+     * Removes the Cache-Control header that the filter set when the status of the response is not 200 or 304.
+     */
+    private static class CacheableResponse extends HttpServletResponseWrapper
+    {
+        CacheableResponse( HttpServletResponse response )
+        {
+            super( response );
+        }
+
+        void uncacheable()
+        {
+            if ( !isCommitted() )
+            {
+                setHeader( "Cache-Control", null );
+            }
+        }
+
+        private void status( int sc )
+        {
+            if ( sc != SC_OK && sc != SC_NOT_MODIFIED )
+            {
+                uncacheable();
+            }
+        }
+
+        @Override
+        public void setStatus( int sc )
+        {
+            status( sc );
+            super.setStatus( sc );
+        }
+
+        @Override
+        public void sendError( int sc ) throws IOException
+        {
+            status( sc );
+            super.sendError( sc );
+        }
+
+        @Override
+        public void sendError( int sc, String msg ) throws IOException
+        {
+            status( sc );
+            super.sendError( sc, msg );
+        }
+
+        @Override
+        public void sendRedirect( String location ) throws IOException
+        {
+            uncacheable();
+            super.sendRedirect( location );
+        }
+    }
+}
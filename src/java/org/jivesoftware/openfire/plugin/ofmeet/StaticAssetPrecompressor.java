@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes a gzip-compressed copy ('.gz') next to every compressible static file of the jitsi-meet webapp, so that the
+ * webapp's default servlet can send those precompressed variants instead of compressing (or not compressing) every
+ * response itself.
+ *
+ * This runs in the background when the webapp is loaded, and is stopped when it is unloaded. A variant is only
+ * (re)written when it is missing or older than its source, so after the first start of a plugin version there is
+ * nothing left to do. Files that do not get smaller are listed (with their modification time) in WEB-INF, so that they
+ * are not compressed again on every start. Brotli ('.br') variants are served as well when they exist, but are not
+ * generated here, for lack of an encoder.
+ */
+public class StaticAssetPrecompressor
+{
+    private static final Logger Log = LoggerFactory.getLogger( StaticAssetPrecompressor.class );
+
+    private static final List<String> DEFAULT_EXTENSIONS = Arrays.asList( "js", "css", "json", "map", "html", "svg", "txt", "wasm", "tflite", "bin" );
+
+    /**
+     * Files smaller than this are not worth compressing.
+     */
+    private static final long MIN_SIZE = 1024;
+
+    /**
+     * The file (in WEB-INF) that lists the files that did not compress, each with its modification time.
+     */
+    private static final String SKIPPED = "precompress-skipped.txt";
+
+    private static Thread thread = null;
+
+    public static synchronized void start( Path root )
+    {
+        if ( !JiveGlobals.getBooleanProperty( "ofmeet.static.precompress.enabled", true ) )
+        {
+            return;
+        }
+
+        final Set<String> extensions = new HashSet<>();
+        for ( final String extension : JiveGlobals.getListProperty( "ofmeet.static.precompress.extensions", DEFAULT_EXTENSIONS ) )
+        {
+            extensions.add( extension.trim().toLowerCase( Locale.ROOT ) );
+        }
+
+        stop();
+        thread = new Thread( () -> precompress( root, extensions ), "ofmeet-static-precompressor" );
+        thread.setDaemon( true );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+
+    /**
+     * Stops precompressing, when that is still in progress.
+     */
+    public static synchronized void stop()
+    {
+        if ( thread != null )
+        {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    private static void precompress( Path root, Set<String> extensions )
+    {
+        final long start = System.currentTimeMillis();
+        final Path index = root.resolve( "WEB-INF" ).resolve( SKIPPED );
+        final Map<String, Long> skipped = readSkipped( index );
+        boolean changed = false;
+        int written = 0;
+
+        try ( Stream<Path> files = Files.walk( root ) )
+        {
+            for ( final Path file : (Iterable<Path>) files.filter( Files::isRegularFile )::iterator )
+            {
+                if ( Thread.currentThread().isInterrupted() )
+                {
+                    Log.debug( "Precompressing the static files in {} was stopped.", root );
+                    break;
+                }
+
+                if ( !isCompressible( root, file, extensions ) )
+                {
+                    continue;
+                }
+
+                final String name = root.relativize( file ).toString();
+                final long modified = Files.getLastModifiedTime( file ).toMillis();
+                final Long skippedAt = skipped.get( name );
+                if ( skippedAt != null && skippedAt == modified )
+                {
+                    continue;
+                }
+
+                final Result result = precompress( file );
+                if ( result == Result.INCOMPRESSIBLE )
+                {
+                    skipped.put( name, modified );
+                    changed = true;
+                }
+                else if ( result == Result.WRITTEN )
+                {
+                    written++;
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            Log.warn( "Unable to precompress the static files in {}", root, e );
+        }
+
+        if ( changed )
+        {
+            writeSkipped( index, skipped );
+        }
+
+        Log.info( "Precompressed {} static files in {} ms", written, System.currentTimeMillis() - start );
+    }
+
+    private static Map<String, Long> readSkipped( Path index )
+    {
+        final Map<String, Long> result = new HashMap<>();
+        if ( !Files.exists( index ) )
+        {
+            return result;
+        }
+
+        try
+        {
+            for ( final String line : Files.readAllLines( index, StandardCharsets.UTF_8 ) )
+            {
+                final int tab = line.lastIndexOf( '\t' );
+                if ( tab > 0 )
+                {
+                    result.put( line.substring( 0, tab ), Long.parseLong( line.substring( tab + 1 ) ) );
+                }
+            }
+        }
+        catch ( IOException | NumberFormatException e )
+        {
+            Log.debug( "Unable to read {}", index, e );
+        }
+        return result;
+    }
+
+    private static void writeSkipped( Path index, Map<String, Long> skipped )
+    {
+        final List<String> lines = new ArrayList<>( skipped.size() );
+        for ( final Map.Entry<String, Long> entry : skipped.entrySet() )
+        {
+            lines.add( entry.getKey() + '\t' + entry.getValue() );
+        }
+
+        try
+        {
+            Files.write( index, lines, StandardCharsets.UTF_8 );
+        }
+        catch ( IOException e )
+        {
+            Log.debug( "Unable to write {}", index, e );
+        }
+    }
+
+    private static boolean isCompressible( Path root, Path file, Set<String> extensions ) throws IOException
+    {
+        final String name = file.getFileName().toString();
+        final int dot = name.lastIndexOf( '.' );
+        return dot > 0
+            && extensions.contains( name.substring( dot + 1 ).toLowerCase( Locale.ROOT ) )
+            && !file.startsWith( root.resolve( "WEB-INF" ) )
+            && Files.size( file ) >= MIN_SIZE;
+    }
+
+    private enum Result
+    {
+        /** A variant was written. */
+        WRITTEN,
+
+        /** No variant was needed, or it could not be written. */
+        UNCHANGED,
+
+        /** The file does not get smaller, so it has no variant. */
+        INCOMPRESSIBLE
+    }
+
+    private static Result precompress( Path file )
+    {
+        final Path variant = file.resolveSibling( file.getFileName() + ".gz" );
+        final Path temporary = file.resolveSibling( file.getFileName() + ".gz.tmp" );
+
+        try
+        {
+            if ( Files.exists( variant ) && !Files.getLastModifiedTime( variant ).toInstant().isBefore( Files.getLastModifiedTime( file ).toInstant() ) )
+            {
+                return Result.UNCHANGED;
+            }
+
+            try ( OutputStream out = new GZIPOutputStream( Files.newOutputStream( temporary ), 65536 ) )
+            {
+                Files.copy( file, out );
+            }
+
+            if ( Files.size( temporary ) >= Files.size( file ) )
+            {
+                // Does not compress; serve the original instead.
+                Files.delete( temporary );
+                Files.deleteIfExists( variant );
+                return Result.INCOMPRESSIBLE;
+            }
+
+            Files.move( temporary, variant, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+            return Result.WRITTEN;
+        }
+        catch ( IOException e )
+        {
+            Log.debug( "Unable to precompress {}", file, e );
+            try
+            {
+                Files.deleteIfExists( temporary );
+            }
+            catch ( IOException e1 )
+            {
+                Log.trace( "Unable to delete {}", temporary, e1 );
+            }
+            return Result.UNCHANGED;
+        }
+    }
+}
@@ -17,17 +17,28 @@
 package org.jivesoftware.openfire.plugin.ofmeet;
 
 import org.igniterealtime.openfire.plugin.ofmeet.config.OFMeetConfig;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.servlet.*;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLConnection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * A Filter that proxies the watermark images, as configured to be used by the Jitsi Meet webapplication.
@@ -36,42 +47,216 @@ import java.net.URLConnection;
  * standard Jitsi logo, which this servlet will serve by default. The latter is referred to as the 'brand' watermark,
  * which by default is empty.
  *
+ * Configured images are fetched once (with timeouts) and served from memory, with validators that allow browsers to
+ * cache them. A cached image is fetched again when its property changes, or revalidated with its origin when it is
+ * older than 'ofmeet.watermark.cache.ttl' milliseconds. Revalidation happens in the background, while the cached image
+ * continues to be served. When the origin cannot be reached, the image that was fetched last is served, and the origin
+ * is not tried again for 'ofmeet.watermark.failure.backoff' milliseconds.
+ *
  * @author Guus der Kinderen, guus.der.kinderen@gmail.com
  */
-public class WatermarkFilter implements Filter
+public class WatermarkFilter implements Filter, PropertyEventListener
 {
     private static final Logger Log = LoggerFactory.getLogger( WatermarkFilter.class );
 
-    protected static void serve( HttpServletResponse response, URL url ) throws IOException
+    /**
+     * The largest number of images that are cached. Only two are configured at any time, but a property change could
+     * leave an older entry behind for a moment.
+     */
+    private static final int MAX_CACHED_IMAGES = 4;
+
+    private final Map<String, CachedImage> cache = new ConcurrentHashMap<>();
+
+    /**
+     * The fetches that are in progress, so that concurrent requests for an image share one.
+     */
+    private final Map<String, CompletableFuture<CachedImage>> fetching = new ConcurrentHashMap<>();
+
+    private ExecutorService executor;
+
+    protected void serve( HttpServletRequest request, HttpServletResponse response, URL url ) throws IOException
+    {
+        final CachedImage image = get( url );
+        if ( image == null )
+        {
+            response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+            return;
+        }
+        image.response.write( request, response );
+    }
+
+    private CachedImage get( URL url )
     {
+        final String key = url.toExternalForm();
+        final CachedImage cached = cache.get( key );
+        if ( cached != null && !cached.isExpired() )
+        {
+            // Without a response while backing off from a failure to fetch an image that was never cached.
+            return cached.response == null ? null : cached;
+        }
+
+        if ( cached != null && cached.response != null )
+        {
+            refresh( url, key, cached );
+            return cached; // Possibly stale, until the background revalidation completes.
+        }
+
+        // There is nothing to serve yet; wait for the image to be fetched.
         try
         {
-            final URLConnection urlConnection = url.openConnection();
-            response.setContentLength( urlConnection.getContentLength() );
-            response.setContentType( urlConnection.getContentType() );
+            final CachedImage fetched = refresh( url, key, null ).get();
+            return fetched.response == null ? null : fetched;
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch ( ExecutionException e )
+        {
+            Log.warn( "Unable to retrieve the URL '{}' to serve as a watermark.", url, e );
+            return null;
+        }
+    }
+
+    /**
+     * Fetches or revalidates an image in the background, unless that is already in progress.
+     */
+    private CompletableFuture<CachedImage> refresh( URL url, String key, CachedImage previous )
+    {
+        final CompletableFuture<CachedImage> future = new CompletableFuture<>();
+        final CompletableFuture<CachedImage> existing = fetching.putIfAbsent( key, future );
+        if ( existing != null )
+        {
+            return existing;
+        }
 
-            try ( final InputStream input = urlConnection.getInputStream();
-                  final OutputStream output = response.getOutputStream() )
+        try
+        {
+            executor.execute( () -> {
+                try
+                {
+                    future.complete( load( url, key, previous ) );
+                }
+                catch ( Throwable t )
+                {
+                    future.completeExceptionally( t );
+                }
+                finally
+                {
+                    fetching.remove( key, future );
+                }
+            });
+        }
+        catch ( RejectedExecutionException e )
+        {
+            fetching.remove( key, future );
+            future.completeExceptionally( e );
+        }
+        return future;
+    }
+
+    /**
+     * Fetches an image and caches the result. When that fails, the previous image (if any) is cached again, to be
+     * served until the origin is tried again after a backoff.
+     */
+    private CachedImage load( URL url, String key, CachedImage previous )
+    {
+        CachedImage result;
+        try
+        {
+            result = fetch( url, previous );
+        }
+        catch ( IOException e )
+        {
+            Log.warn( "Unable to retrieve the URL '{}' to serve as a watermark.", url, e );
+            result = new CachedImage( previous == null ? null : previous.response, JiveGlobals.getLongProperty( "ofmeet.watermark.failure.backoff", 60000 ) );
+        }
+
+        if ( cache.size() >= MAX_CACHED_IMAGES && !cache.containsKey( key ) ) cache.clear();
+        cache.put( key, result );
+        return result;
+    }
+
+    /**
+     * Fetches an image. When a previous copy is provided, it is revalidated with the origin, and returned (as
+     * validated now) when it did not change. Images larger than 'ofmeet.watermark.max.size' bytes are refused.
+     * Never call this while holding a lock: it waits for the network.
+     */
+    private static CachedImage fetch( URL url, CachedImage previous ) throws IOException
+    {
+        final URLConnection urlConnection = url.openConnection();
+        urlConnection.setConnectTimeout( JiveGlobals.getIntProperty( "ofmeet.watermark.connect.timeout", 5000 ) );
+        urlConnection.setReadTimeout( JiveGlobals.getIntProperty( "ofmeet.watermark.read.timeout", 5000 ) );
+        if ( previous != null && previous.response.getLastModified() > 0 )
+        {
+            urlConnection.setIfModifiedSince( previous.response.getLastModified() );
+        }
+
+        try
+        {
+            if ( urlConnection instanceof HttpURLConnection )
+            {
+                final int status = ( (HttpURLConnection) urlConnection ).getResponseCode();
+                if ( status == HttpURLConnection.HTTP_NOT_MODIFIED && previous != null )
+                {
+                    return new CachedImage( previous.response, getTimeToLive() );
+                }
+                if ( status != HttpURLConnection.HTTP_OK )
+                {
+                    throw new IOException( "Watermark location responded with " + status );
+                }
+            }
+
+            final int maxSize = JiveGlobals.getIntProperty( "ofmeet.watermark.max.size", 1024 * 1024 );
+            if ( urlConnection.getContentLengthLong() > maxSize )
+            {
+                throw new IOException( "Watermark is larger than " + maxSize + " bytes." );
+            }
+
+            final ByteArrayOutputStream body = new ByteArrayOutputStream( Math.max( 1024, (int) urlConnection.getContentLengthLong() ) );
+            try ( final InputStream input = urlConnection.getInputStream() )
             {
-                final byte[] buffer = new byte[ 1024 ];
+                final byte[] buffer = new byte[ 8192 ];
                 int bytesRead;
                 while ( ( bytesRead = input.read( buffer ) ) != -1 )
                 {
-                    output.write( buffer, 0, bytesRead );
+                    if ( body.size() + bytesRead > maxSize )
+                    {
+                        throw new IOException( "Watermark is larger than " + maxSize + " bytes." );
+                    }
+                    body.write( buffer, 0, bytesRead );
                 }
             }
+
+            final long lastModified = urlConnection.getLastModified() > 0 ? urlConnection.getLastModified() : System.currentTimeMillis();
+            final String contentType = urlConnection.getContentType() != null ? urlConnection.getContentType() : "image/png";
+            final String cacheControl = "public, max-age=" + JiveGlobals.getIntProperty( "ofmeet.watermark.max.age", 300 );
+            return new CachedImage( new CachedResponse( body.toByteArray(), contentType, lastModified, cacheControl ), getTimeToLive() );
         }
-        catch ( IOException e )
+        finally
         {
-            Log.warn( "Unable to serve the URL '{}' as proxied content.", url, e );
-            response.sendError( HttpServletResponse.SC_INTERNAL_SERVER_ERROR );
+            if ( urlConnection instanceof HttpURLConnection )
+            {
+                ( (HttpURLConnection) urlConnection ).disconnect();
+            }
         }
     }
 
+    private static long getTimeToLive()
+    {
+        return JiveGlobals.getLongProperty( "ofmeet.watermark.cache.ttl", 3600000 );
+    }
+
     @Override
     public void init( FilterConfig filterConfig ) throws ServletException
     {
-
+        executor = Executors.newSingleThreadExecutor( runnable -> {
+            final Thread thread = new Thread( runnable, "ofmeet-watermark" );
+            thread.setDaemon( true );
+            return thread;
+        });
+        PropertyEventDispatcher.addListener( this );
     }
 
     @Override
@@ -93,7 +278,7 @@ public class WatermarkFilter implements Filter
                 else
                 {
                     Log.trace( "[{}] Right/Brand Watermark URL is: {}. Retrieving and returning its content.", request.getRemoteAddr(), logoLocation );
-                    serve( response, logoLocation );
+                    serve( request, response, logoLocation );
                     return;
                 }
             }
@@ -108,7 +293,7 @@ public class WatermarkFilter implements Filter
                 else
                 {
                     Log.trace( "[{}] Right/Brand Watermark URL is: {}. Retrieving and returning its content.", request.getRemoteAddr(), logoLocation );
-                    serve( response, logoLocation );
+                    serve( request, response, logoLocation );
                     return;
                 }
             }
@@ -124,6 +309,63 @@ public class WatermarkFilter implements Filter
     @Override
     public void destroy()
     {
+        PropertyEventDispatcher.removeListener( this );
+        executor.shutdownNow();
+        cache.clear();
+    }
+
+    private void invalidate( String property )
+    {
+        if ( property.startsWith( "org.jitsi.videobridge.ofmeet." ) && property.endsWith( "watermark.logo" ) )
+        {
+            Log.debug( "Property {} changed, discarding cached watermarks", property );
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void propertySet( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void propertyDeleted( String property, Map<String, Object> params )
+    {
+        invalidate( property );
+    }
+
+    @Override
+    public void xmlPropertySet( String property, Map<String, Object> params )
+    {
+    }
+
+    @Override
+    public void xmlPropertyDeleted( String property, Map<String, Object> params )
+    {
+    }
+
+    private static class CachedImage
+    {
+        /**
+         * The image, or null when it could not be fetched.
+         */
+        final CachedResponse response;
 
+        /**
+         * The time after which the image is to be revalidated (or fetching it retried).
+         */
+        final long expires;
+
+        CachedImage( CachedResponse response, long timeToLive )
+        {
+            this.response = response;
+            this.expires = System.currentTimeMillis() + timeToLive;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() >= expires;
+        }
     }
 }
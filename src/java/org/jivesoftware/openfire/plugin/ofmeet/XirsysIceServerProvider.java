@@ -0,0 +1,265 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Fetches TURN credentials (ICE servers) from the Xirsys API configured in 'ofmeet.xirsys.url' in the background, so
+ * that serving config.js never waits on the external API.
+ *
+ * Credentials are refreshed ahead of their expiry ('ofmeet.xirsys.ttl'). Requests use connect and read timeouts, and
+ * after a number of consecutive failures the provider stops calling the API for a while (a circuit breaker), serving
+ * the last good credentials until they expire.
+ */
+public class XirsysIceServerProvider implements PropertyEventListener
+{
+    private static final Logger Log = LoggerFactory.getLogger( XirsysIceServerProvider.class );
+
+    private static final XirsysIceServerProvider INSTANCE = new XirsysIceServerProvider( Settings::fromProperties );
+
+    public static XirsysIceServerProvider getInstance()
+    {
+        return INSTANCE;
+    }
+
+    private final Supplier<Settings> settings;
+
+    private volatile String iceServers = null;
+    private volatile long expires = 0;
+
+    private int consecutiveFailures = 0;
+    private ScheduledExecutorService executor = null;
+    private ScheduledFuture<?> scheduled = null;
+
+    XirsysIceServerProvider( Supplier<Settings> settings )
+    {
+        this.settings = settings;
+    }
+
+    public synchronized void start()
+    {
+        if ( executor != null ) return;
+
+        executor = Executors.newSingleThreadScheduledExecutor( runnable -> {
+            final Thread thread = new Thread( runnable, "ofmeet-xirsys" );
+            thread.setDaemon( true );
+            return thread;
+        });
+        PropertyEventDispatcher.addListener( this );
+        reschedule( 0 );
+    }
+
+    public synchronized void stop()
+    {
+        PropertyEventDispatcher.removeListener( this );
+
+        if ( executor != null )
+        {
+            executor.shutdownNow();
+            executor = null;
+        }
+        scheduled = null;
+        clear();
+    }
+
+    /**
+     * The most recently fetched ICE servers, or null when Xirsys is not configured or no valid credentials are
+     * available. The same instance is returned for as long as the credentials do not change.
+     */
+    public String getIceServers()
+    {
+        final String current = iceServers;
+        return current != null && System.currentTimeMillis() < expires ? current : null;
+    }
+
+    private synchronized void reschedule( long delay )
+    {
+        if ( scheduled != null ) scheduled.cancel( false );
+        scheduled = null;
+
+        if ( executor != null && settings.get().url != null )
+        {
+            scheduled = executor.schedule( this::refresh, delay, TimeUnit.MILLISECONDS );
+        }
+    }
+
+    private void refresh()
+    {
+        final Settings current = settings.get();
+        if ( current.url == null )
+        {
+            clear();
+            return;
+        }
+
+        final long ttl = current.ttl;
+
+        try
+        {
+            final JSONObject jsonObject = new JSONObject( fetch( current ) );
+            final String value = jsonObject.get( "d" ).toString();
+
+            if ( !value.equals( iceServers ) )
+            {
+                Log.info( "OFMeetConfig. got xirsys iceSevers " + value );
+                iceServers = value;
+            }
+            expires = System.currentTimeMillis() + ttl;
+
+            synchronized ( this ) { consecutiveFailures = 0; }
+
+            // Refresh well before the credentials expire.
+            reschedule( ttl * 4 / 5 );
+        }
+        catch ( Exception e )
+        {
+            final int failures;
+            synchronized ( this ) { failures = ++consecutiveFailures; }
+
+            if ( failures >= current.circuitFailures )
+            {
+                final long open = current.circuitOpen;
+                Log.warn( "Unable to fetch ICE servers from Xirsys ({} consecutive failures), retrying in {} ms", failures, open, e );
+                reschedule( open );
+            }
+            else
+            {
+                Log.warn( "Unable to fetch ICE servers from Xirsys, retrying", e );
+                reschedule( Math.min( 5000L * failures, ttl / 5 ) );
+            }
+        }
+    }
+
+    private void clear()
+    {
+        iceServers = null;
+        expires = 0;
+    }
+
+    private static String fetch( Settings settings ) throws IOException
+    {
+        final HttpURLConnection conn = (HttpURLConnection) new URL( settings.url ).openConnection();
+        conn.setRequestMethod( "GET" );
+        conn.setConnectTimeout( settings.connectTimeout );
+        conn.setReadTimeout( settings.readTimeout );
+
+        try
+        {
+            if ( conn.getResponseCode() != HttpURLConnection.HTTP_OK )
+            {
+                throw new IOException( "Xirsys responded with " + conn.getResponseCode() );
+            }
+
+            final StringBuilder result = new StringBuilder();
+            try ( BufferedReader rd = new BufferedReader( new InputStreamReader( conn.getInputStream(), StandardCharsets.UTF_8 ) ) )
+            {
+                String line;
+                while ( ( line = rd.readLine() ) != null )
+                {
+                    result.append( line );
+                }
+            }
+            return result.toString();
+        }
+        finally
+        {
+            conn.disconnect();
+        }
+    }
+
+    private void propertyChanged( String property )
+    {
+        if ( property.startsWith( "ofmeet.xirsys." ) )
+        {
+            synchronized ( this ) { consecutiveFailures = 0; }
+            clear();
+            reschedule( 0 );
+        }
+    }
+
+    @Override
+    public void propertySet( String property, Map<String, Object> params )
+    {
+        propertyChanged( property );
+    }
+
+    @Override
+    public void propertyDeleted( String property, Map<String, Object> params )
+    {
+        propertyChanged( property );
+    }
+
+    @Override
+    public void xmlPropertySet( String property, Map<String, Object> params )
+    {
+    }
+
+    @Override
+    public void xmlPropertyDeleted( String property, Map<String, Object> params )
+    {
+    }
+
+    /**
+     * The configuration of the provider, read again every time that the API is called.
+     */
+    static class Settings
+    {
+        final String url;
+        final long ttl;
+        final int connectTimeout;
+        final int readTimeout;
+        final int circuitFailures;
+        final long circuitOpen;
+
+        Settings( String url, long ttl, int connectTimeout, int readTimeout, int circuitFailures, long circuitOpen )
+        {
+            this.url = url;
+            this.ttl = ttl;
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+            this.circuitFailures = circuitFailures;
+            this.circuitOpen = circuitOpen;
+        }
+
+        static Settings fromProperties()
+        {
+            return new Settings(
+                JiveGlobals.getProperty( "ofmeet.xirsys.url" ),
+                JiveGlobals.getLongProperty( "ofmeet.xirsys.ttl", 300000 ),
+                JiveGlobals.getIntProperty( "ofmeet.xirsys.connect.timeout", 5000 ),
+                JiveGlobals.getIntProperty( "ofmeet.xirsys.read.timeout", 5000 ),
+                JiveGlobals.getIntProperty( "ofmeet.xirsys.circuit.failures", 3 ),
+                JiveGlobals.getLongProperty( "ofmeet.xirsys.circuit.open", 60000 ) );
+        }
+    }
+}
@@ -196,6 +196,23 @@ public class Bookmark implements Serializable {
         loadPermissions();
     }
 
+    /**
+     * Creates a bookmark from data that was already loaded from the database.
+     *
+     * @see BookmarkManager#getBookmarks()
+     */
+    Bookmark(long bookmarkID, Type type, String name, String value, boolean global,
+             Collection<String> users, Collection<String> groups, Map<String, String> properties) {
+        this.bookmarkID = bookmarkID;
+        this.type = type;
+        this.name = name;
+        this.value = value;
+        this.global = global;
+        this.users = users;
+        this.groups = groups;
+        this.properties = properties;
+    }
+
     /**
      * Returns the unique ID of the bookmark.
      *
@@ -557,6 +574,7 @@ public class Bookmark implements Serializable {
                 }
             }
         }
+        BookmarkManager.invalidateCache();
     }
 
     private void insertBookmarkPermission(int type, String name) throws ServiceException {
@@ -725,6 +743,7 @@ public class Bookmark implements Serializable {
         }
         finally {
             DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+            BookmarkManager.invalidateCache();
         }
     }
 
@@ -778,6 +797,7 @@ public class Bookmark implements Serializable {
         }
         finally {
             DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+            BookmarkManager.invalidateCache();
         }
     }
 
@@ -802,6 +822,7 @@ public class Bookmark implements Serializable {
         }
         finally {
             DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+            BookmarkManager.invalidateCache();
         }
     }
 
@@ -825,6 +846,7 @@ public class Bookmark implements Serializable {
         }
         finally {
             DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+            BookmarkManager.invalidateCache();
         }
     }
 }
@@ -0,0 +1,356 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.event.GroupEventDispatcher;
+import org.jivesoftware.openfire.event.GroupEventListener;
+import org.jivesoftware.openfire.event.UserEventDispatcher;
+import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.user.User;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * An index of the bookmarks that are visible to each user, so that finding the bookmarks of a user does not require
+ * a group membership check for every bookmark.
+ *
+ * The index is derived from the cached bookmarks (by user, by group, and global), and is rebuilt whenever those are
+ * reloaded. The bookmarks of a user are determined once, from the groups that the user is in, and then kept until a
+ * group event or user event makes them outdated. The XML fragment of each bookmark is kept with the index as well.
+ *
+ * @see BookmarkManager#getBookmarksForUser(String)
+ */
+public class BookmarkIndex implements GroupEventListener, UserEventListener {
+
+    private static final Logger Log = LoggerFactory.getLogger(BookmarkIndex.class);
+
+    private static final BookmarkIndex INSTANCE = new BookmarkIndex();
+
+    private static final String STORAGE_NAMESPACE = "storage:bookmarks";
+
+    public static BookmarkIndex getInstance() {
+        return INSTANCE;
+    }
+
+    private volatile Index index;
+
+    private BookmarkIndex() {
+    }
+
+    /**
+     * Starts listening for the group and user events that change the visibility of bookmarks.
+     */
+    public void start() {
+        GroupEventDispatcher.addListener(this);
+        UserEventDispatcher.addListener(this);
+    }
+
+    public void stop() {
+        GroupEventDispatcher.removeListener(this);
+        UserEventDispatcher.removeListener(this);
+        index = null;
+    }
+
+    /**
+     * Returns the bookmarks of a snapshot that are visible to a user, in the order of the snapshot.
+     */
+    List<Bookmark> getBookmarks(BookmarkManager.Snapshot snapshot, String username) {
+        return getIndex(snapshot).getVisible(username).bookmarks;
+    }
+
+    /**
+     * Returns the IDs of the bookmarks of a snapshot that are visible to a user.
+     */
+    Set<Long> getBookmarkIDs(BookmarkManager.Snapshot snapshot, String username) {
+        return getIndex(snapshot).getVisible(username).ids;
+    }
+
+    private Index getIndex(BookmarkManager.Snapshot snapshot) {
+        Index current = index;
+        if (current == null || current.snapshotID != snapshot.id) {
+            current = new Index(snapshot, BookmarkIndex::getGroupNames, JiveGlobals.getIntProperty("ofmeet.bookmarks.visibility.cache.size", 10000));
+            index = current;
+        }
+        return current;
+    }
+
+    private static Collection<String> getGroupNames(String username) {
+        final JID user = XMPPServer.getInstance().createJID(username, null);
+        final List<String> result = new ArrayList<String>();
+        for (Group group : GroupManager.getInstance().getGroups(user)) {
+            result.add(group.getName());
+        }
+        return result;
+    }
+
+    /**
+     * Returns the XEP-0048 element (a 'url' or 'conference' element, marked as a shared bookmark) of a bookmark. The
+     * element is rendered once per snapshot; callers must add a copy of it to a stanza, not the element itself.
+     */
+    Element getFragment(Bookmark bookmark) {
+        final Index current = index;
+        final Bookmark indexed = current == null ? null : current.bookmarks.get(bookmark.getBookmarkID());
+        if (indexed == null) {
+            return render(bookmark);
+        }
+        return current.fragments.computeIfAbsent(indexed.getBookmarkID(), id -> render(indexed));
+    }
+
+    private static Element render(Bookmark bookmark) {
+        final Element element;
+        if (bookmark.getType() == Bookmark.Type.url) {
+            element = DocumentHelper.createElement(QName.get("url", STORAGE_NAMESPACE));
+            element.addAttribute("name", bookmark.getName());
+            element.addAttribute("url", bookmark.getValue());
+            // Add an RSS attribute to the bookmark if it's defined. RSS isn't an
+            // official part of the Bookmark JEP, but we define it as a logical
+            // extension.
+            if (Boolean.valueOf(bookmark.getProperty("rss"))) {
+                element.addAttribute("rss", "true");
+            }
+        }
+        else {
+            element = DocumentHelper.createElement(QName.get("conference", STORAGE_NAMESPACE));
+            element.addAttribute("name", bookmark.getName());
+            element.addAttribute("autojoin", Boolean.toString(Boolean.valueOf(bookmark.getProperty("autojoin"))));
+            element.addAttribute("jid", bookmark.getValue());
+        }
+        element.addElement("shared_bookmark", "http://jivesoftware.com/jeps/bookmarks");
+        return element;
+    }
+
+    /**
+     * Forgets what is visible to one user, or to all users when the username is null.
+     */
+    private void invalidate(String username) {
+        final Index current = index;
+        if (current != null) {
+            current.invalidate(username);
+        }
+    }
+
+    private void invalidate(Map params, String key) {
+        final Object value = params == null ? null : params.get(key);
+        if (value == null) {
+            invalidate(null);
+            return;
+        }
+
+        try {
+            invalidate(new JID(value.toString()).getNode());
+        }
+        catch (IllegalArgumentException e) {
+            invalidate(null);
+        }
+    }
+
+    @Override
+    public void groupCreated(Group group, Map params) {
+        invalidate(null);
+    }
+
+    @Override
+    public void groupDeleting(Group group, Map params) {
+        invalidate(null);
+    }
+
+    @Override
+    public void groupModified(Group group, Map params) {
+        invalidate(null);
+    }
+
+    @Override
+    public void memberAdded(Group group, Map params) {
+        invalidate(params, "member");
+    }
+
+    @Override
+    public void memberRemoved(Group group, Map params) {
+        invalidate(params, "member");
+    }
+
+    @Override
+    public void adminAdded(Group group, Map params) {
+        invalidate(params, "admin");
+    }
+
+    @Override
+    public void adminRemoved(Group group, Map params) {
+        invalidate(params, "admin");
+    }
+
+    @Override
+    public void userCreated(User user, Map<String, Object> params) {
+        invalidate(user.getUsername());
+    }
+
+    @Override
+    public void userDeleting(User user, Map<String, Object> params) {
+        invalidate(user.getUsername());
+    }
+
+    @Override
+    public void userModified(User user, Map<String, Object> params) {
+    }
+
+    /**
+     * The visibility of the bookmarks of one snapshot.
+     */
+    static class Index {
+        private final long snapshotID;
+        private final Map<Long, Bookmark> bookmarks;
+        private final Map<Long, Element> fragments = new ConcurrentHashMap<Long, Element>();
+        private final Map<Long, Integer> positions = new HashMap<Long, Integer>();
+        private final List<Bookmark> global = new ArrayList<Bookmark>();
+        private final Map<String, List<Bookmark>> byUser = new HashMap<String, List<Bookmark>>();
+        private final Map<String, List<Bookmark>> byGroup = new HashMap<String, List<Bookmark>>();
+        private final Map<String, Visible> visible = new ConcurrentHashMap<String, Visible>();
+        private final Function<String, Collection<String>> groupsOfUser;
+        private final int maxVisible;
+
+        /**
+         * Incremented by every invalidation, so that bookmarks that were determined while one was made are not kept.
+         */
+        private final AtomicLong changes = new AtomicLong();
+        private final Visible globalOnly;
+
+        /**
+         * @param groupsOfUser returns the names of the groups that a user is in.
+         * @param maxVisible the number of users for which the visible bookmarks are kept.
+         */
+        Index(BookmarkManager.Snapshot snapshot, Function<String, Collection<String>> groupsOfUser, int maxVisible) {
+            this.snapshotID = snapshot.id;
+            this.bookmarks = snapshot.byID;
+            this.groupsOfUser = groupsOfUser;
+            this.maxVisible = maxVisible;
+
+            for (Bookmark bookmark : snapshot.byID.values()) {
+                positions.put(bookmark.getBookmarkID(), positions.size());
+
+                if (bookmark.isGlobalBookmark()) {
+                    global.add(bookmark);
+                    continue;
+                }
+                for (String user : bookmark.getUsers()) {
+                    byUser.computeIfAbsent(user, name -> new ArrayList<Bookmark>()).add(bookmark);
+                }
+                for (String group : bookmark.getGroups()) {
+                    byGroup.computeIfAbsent(group, name -> new ArrayList<Bookmark>()).add(bookmark);
+                }
+            }
+            globalOnly = new Visible(global);
+            Log.debug("Indexed {} bookmarks, for {} users and {} groups", positions.size(), byUser.size(), byGroup.size());
+        }
+
+        /**
+         * Returns the bookmarks that are visible to a user, determining them when they are not known.
+         */
+        Visible getVisible(String username) {
+            Visible result = visible.get(username);
+            if (result == null) {
+                final long before = changes.get();
+                result = compute(username);
+                if (visible.size() >= maxVisible) {
+                    visible.clear();
+                }
+                visible.put(username, result);
+
+                // An invalidation that was made while computing may have been missed; do not keep the result then.
+                if (changes.get() != before) {
+                    visible.remove(username, result);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Forgets what is visible to one user, or to all users when the username is null.
+         */
+        void invalidate(String username) {
+            changes.incrementAndGet();
+            if (username == null) {
+                visible.clear();
+            }
+            else {
+                visible.remove(username);
+            }
+        }
+
+        private Visible compute(String username) {
+            final Set<Bookmark> result = new LinkedHashSet<Bookmark>(global);
+
+            final List<Bookmark> direct = byUser.get(username);
+            if (direct != null) {
+                result.addAll(direct);
+            }
+
+            if (!byGroup.isEmpty()) {
+                for (String group : groupsOfUser.apply(username)) {
+                    final List<Bookmark> shared = byGroup.get(group);
+                    if (shared != null) {
+                        result.addAll(shared);
+                    }
+                }
+            }
+
+            if (result.size() == global.size()) {
+                return globalOnly;
+            }
+
+            final List<Bookmark> sorted = new ArrayList<Bookmark>(result);
+            sorted.sort(Comparator.comparingInt(bookmark -> positions.get(bookmark.getBookmarkID())));
+            return new Visible(sorted);
+        }
+    }
+
+    /**
+     * The bookmarks that are visible to a user, as a list and as a set of IDs.
+     */
+    static class Visible {
+        final List<Bookmark> bookmarks;
+        final Set<Long> ids;
+
+        Visible(List<Bookmark> bookmarks) {
+            final Set<Long> ids = new HashSet<Long>();
+            for (Bookmark bookmark : bookmarks) {
+                ids.add(bookmark.getBookmarkID());
+            }
+            this.bookmarks = Collections.unmodifiableList(bookmarks);
+            this.ids = Collections.unmodifiableSet(ids);
+        }
+    }
+}
@@ -17,12 +17,13 @@
 package org.jivesoftware.openfire.plugin.spark;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
 
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
-import org.jivesoftware.openfire.group.Group;
-import org.jivesoftware.openfire.group.GroupManager;
-import org.jivesoftware.openfire.group.GroupNotFoundException;
+import org.dom4j.QName;
 import org.jivesoftware.openfire.interceptor.InterceptorManager;
 import org.jivesoftware.openfire.interceptor.PacketInterceptor;
 import org.jivesoftware.openfire.interceptor.PacketRejectedException;
@@ -108,120 +109,77 @@ public class BookmarkInterceptor implements PacketInterceptor {
      */
     private void addBookmarks(JID jid, Element storageElement) {
         try {
-            final Collection<Bookmark> bookmarks = BookmarkManager.getBookmarks();
-
-            for (Bookmark bookmark : bookmarks) {
-                // Check to see if the bookmark should be appended for this
-                // particular user.
-                boolean addBookmarkForUser = bookmark.isGlobalBookmark() || isBookmarkForJID(jid, bookmark);
-                if (addBookmarkForUser) {
-                    // Add bookmark element.
-                    addBookmarkElement(jid, bookmark, storageElement);
-                }
+            final Collection<Bookmark> bookmarks = BookmarkManager.getBookmarksForUser(jid.getNode());
+            if (bookmarks.isEmpty()) {
+                return;
             }
-        } catch (Exception e) {
-            Log.error("addBookmarks", e);
-        }
-    }
 
-    /**
-     * True if the specified bookmark should be appended to the users list of
-     * bookmarks.
-     *
-     * @param jid      the jid of the user.
-     * @param bookmark the bookmark.
-     * @return true if bookmark should be appended.
-     */
-    private static boolean isBookmarkForJID(JID jid, Bookmark bookmark) {
-        String username = jid.getNode();
-
-        if (bookmark.getUsers().contains(username)) {
-            return true;
-        }
+            final User user;
+            try {
+                user = UserManager.getInstance().getUser(jid.getNode());
+            }
+            catch (UserNotFoundException e) {
+                return;
+            }
 
-        Collection<String> groups = bookmark.getGroups();
+            // The bookmarks that the user defined, so that no duplicates are added.
+            final Map<String, Element> urls = index(storageElement, "url", "url");
+            final Map<String, Element> conferences = index(storageElement, "conference", "jid");
 
-        if (groups != null && !groups.isEmpty()) {
-            GroupManager groupManager = GroupManager.getInstance();
-            for (String groupName : groups) {
+            for (Bookmark bookmark : bookmarks) {
                 try {
-                    Group group = groupManager.getGroup(groupName);
-                    if (group.isUser(jid.getNode())) {
-                        return true;
-                    }
+                    addBookmarkElement(user, bookmark, storageElement, bookmark.getType() == Bookmark.Type.url ? urls : conferences);
                 }
-                catch (GroupNotFoundException e) {
-                    Log.debug(e.getMessage(), e);
+                catch (Exception e) {
+                    Log.error(e.getMessage(), e);
                 }
             }
+        } catch (Exception e) {
+            Log.error("addBookmarks", e);
         }
-        return false;
     }
 
     /**
      * Adds a Bookmark to the users defined list of bookmarks.
      *
-     * @param jid      the users jid.
+     * @param user     the user.
      * @param bookmark the bookmark to be added.
      * @param element  the storage element to append to.
+     * @param existing the bookmarks of the same type that are already in the storage element, by (lower case) value.
      */
-    private void addBookmarkElement(JID jid, Bookmark bookmark, Element element) {
-        final UserManager userManager = UserManager.getInstance();
-
-        try {
-            userManager.getUser(jid.getNode());
-        }
-        catch (UserNotFoundException e) {
+    private void addBookmarkElement(User user, Bookmark bookmark, Element element, Map<String, Element> existing) {
+        // If the user already has this bookmark, mark it as shared rather than adding a duplicate.
+        final Element bookmarkElement = bookmark.getValue() == null ? null : existing.get(bookmark.getValue().toLowerCase());
+        if (bookmarkElement != null) {
+            appendSharedElement(bookmarkElement);
             return;
         }
 
-        // If this is a URL Bookmark, check to make sure we
-        // do not add duplicate bookmarks.
-        if (bookmark.getType() == Bookmark.Type.url) {
-            Element urlBookmarkElement = urlExists(element, bookmark.getValue());
-
-            if (urlBookmarkElement == null) {
-                urlBookmarkElement = element.addElement("url");
-                urlBookmarkElement.addAttribute("name", bookmark.getName());
-                urlBookmarkElement.addAttribute("url", bookmark.getValue());
-                // Add an RSS attribute to the bookmark if it's defined. RSS isn't an
-                // official part of the Bookmark JEP, but we define it as a logical
-                // extension.
-                boolean rss = Boolean.valueOf(bookmark.getProperty("rss"));
-                if (rss) {
-                    urlBookmarkElement.addAttribute("rss", Boolean.toString(rss));
-                }
-            }
-            appendSharedElement(urlBookmarkElement);
+        // Add a copy of the pre-rendered bookmark.
+        final Element fragment = BookmarkIndex.getInstance().getFragment(bookmark).createCopy();
+        if (bookmark.getType() == Bookmark.Type.group_chat && Boolean.valueOf(bookmark.getProperty("nameasnick"))) {
+            final Element nick = DocumentHelper.createElement(QName.get("nick", fragment.getNamespace()));
+            nick.addText(user.getName());
+            fragment.elements().add(0, nick);
         }
-        // Otherwise it's a conference bookmark.
-        else {
-
-            try {
-                Element conferenceElement = conferenceExists(element, bookmark.getValue());
-
-                // If the conference bookmark does not exist, add it to the current
-                // reply.
-                if (conferenceElement == null) {
-                    conferenceElement = element.addElement("conference");
-                    conferenceElement.addAttribute("name", bookmark.getName());
-                    boolean autojoin = Boolean.valueOf(bookmark.getProperty("autojoin"));
-                    conferenceElement.addAttribute("autojoin", Boolean.toString(autojoin));
-                    conferenceElement.addAttribute("jid", bookmark.getValue());
-                    boolean nameasnick = Boolean.valueOf(bookmark.getProperty("nameasnick"));
-                    if (nameasnick) {
-                        User currentUser = userManager.getUser(jid.getNode());
-                        Element nick = conferenceElement.addElement("nick");
-                        nick.addText(currentUser.getName());
-                    }
-                }
-                appendSharedElement(conferenceElement);
+        element.add(fragment);
+        if (bookmark.getValue() != null) existing.put(bookmark.getValue().toLowerCase(), fragment);
+    }
 
-            }
-            catch (Exception e) {
-                Log.error(e.getMessage(), e);
+    /**
+     * Indexes the child elements of a storage element by the (lower case) value of an attribute.
+     */
+    private static Map<String, Element> index(Element storageElement, String name, String attribute) {
+        final Map<String, Element> result = new HashMap<String, Element>();
+        final Iterator<Element> elements = storageElement.elementIterator(name);
+        while (elements.hasNext()) {
+            final Element element = elements.next();
+            final String value = element.attributeValue(attribute);
+            if (value != null) {
+                result.putIfAbsent(value.toLowerCase(), element);
             }
         }
+        return result;
     }
 
     /**
@@ -232,48 +190,4 @@ public class BookmarkInterceptor implements PacketInterceptor {
     private static void appendSharedElement(Element bookmarkElement) {
         bookmarkElement.addElement("shared_bookmark", "http://jivesoftware.com/jeps/bookmarks");
     }
-
-    /**
-     * Checks if the bookmark has already been defined in the users private storage.
-     *
-     * @param element the private storage element.
-     * @param url     the url to search for.
-     * @return true if the bookmark already exists.
-     */
-    private static Element urlExists(Element element, String url) {
-        // Iterate through current elements to see if this url already exists.
-        // If one does not exist, then add the bookmark.
-        final Iterator<Element> urlBookmarks = element.elementIterator("url");
-        while (urlBookmarks.hasNext()) {
-            Element urlElement = urlBookmarks.next();
-            String urlValue = urlElement.attributeValue("url");
-            if (urlValue.equalsIgnoreCase(url)) {
-                return urlElement;
-            }
-        }
-
-        return null;
-    }
-
-    /**
-     * Checks if the conference bookmark has already been defined in the users private storage.
-     *
-     * @param element  the private storage element.
-     * @param roomJID the JID of the room to find.
-     * @return true if the bookmark exists.
-     */
-    private Element conferenceExists(Element element, String roomJID) {
-        // Iterate through current elements to see if the conference bookmark
-        // already exists.
-        final Iterator<Element> conferences = element.elementIterator("conference");
-        while (conferences.hasNext()) {
-            final Element conferenceElement = conferences.next();
-            String jidValue = conferenceElement.attributeValue("jid");
-
-            if (jidValue != null && roomJID != null && jidValue.equalsIgnoreCase(roomJID)) {
-                return conferenceElement;
-            }
-        }
-        return null;
-    }
 }
@@ -22,7 +22,14 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.ws.rs.core.Response;
 
@@ -31,6 +38,7 @@ import org.xmpp.packet.*;
 
 import org.jivesoftware.openfire.*;
 import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,7 +64,25 @@ public class BookmarkManager {
     private static final Logger Log = LoggerFactory.getLogger(BookmarkManager.class);
 
     private static final String DELETE_BOOKMARK = "DELETE FROM ofBookmark where bookmarkID=?";
-    private static final String SELECT_BOOKMARKS = "SELECT bookmarkID from ofBookmark";
+    private static final String LOAD_BOOKMARKS =
+            "SELECT bookmarkID, bookmarkType, bookmarkName, bookmarkValue, isGlobal FROM ofBookmark";
+    private static final String LOAD_BOOKMARK_PERMISSIONS =
+            "SELECT bookmarkID, bookmarkType, name FROM ofBookmarkPerm";
+    private static final String LOAD_BOOKMARK_PROPERTIES =
+            "SELECT bookmarkID, name, propValue FROM ofBookmarkProp";
+
+    private static final String GENERATION_CACHE_NAME = "ofmeet Bookmarks Generation";
+    private static final String CACHE_KEY = "all";
+
+    /**
+     * The bookmarks as loaded by this node, or null when they were not loaded yet.
+     */
+    private static volatile Snapshot cached = null;
+
+    /**
+     * Held by the thread that loads the bookmarks, so that the threads of this node do not all load them at once.
+     */
+    private static final ReentrantLock loading = new ReentrantLock();
 
     private static final String DOMAIN = XMPPServer.getInstance().getServerInfo().getXMPPDomain();
     private static final MessageRouter MESSAGE_ROUTER = XMPPServer.getInstance().getMessageRouter();
@@ -71,8 +97,19 @@ public class BookmarkManager {
      * @throws NotFoundException if the bookmark could not be found or loaded.
      */
     public static Bookmark getBookmark(long bookmarkID) throws NotFoundException {
-        // TODO add caching
-        return new Bookmark(bookmarkID);
+        final Snapshot snapshot;
+        try {
+            snapshot = getSnapshot();
+        }
+        catch (ServiceException e) {
+            return new Bookmark(bookmarkID);
+        }
+
+        final Bookmark bookmark = snapshot.byID.get(bookmarkID);
+        if (bookmark == null) {
+            throw new NotFoundException("Bookmark not found: " + bookmarkID);
+        }
+        return bookmark;
     }
 
     /**
@@ -84,24 +121,19 @@ public class BookmarkManager {
      */
     public static Bookmark getBookmark(String bookmarkValue)
     {
-        Cache<String, Bookmark> bookmarkCache = CacheFactory.createLocalCache("Bookmarks");
-        Bookmark bookmark = bookmarkCache.get(bookmarkValue);
-
-        if (bookmark != null) {
-            Log.debug("getBookmark: using cache "  + bookmarkValue);
-            return bookmark;
-        }
-
         try {
-            bookmark = new Bookmark(bookmarkValue);
-            bookmarkCache.put(bookmarkValue, bookmark);
-
-            Log.debug("getBookmark: adding to cache "  + bookmarkValue);
-
-        } catch (Exception e) {
-            // ignore as bookmark will be null
+            final Snapshot snapshot = getSnapshot();
+            final Long bookmarkID = snapshot.byValue.get(bookmarkValue);
+            return bookmarkID == null ? null : snapshot.byID.get(bookmarkID);
+        }
+        catch (ServiceException e) {
+            try {
+                return new Bookmark(bookmarkValue);
+            } catch (Exception e1) {
+                // ignore as bookmark will be null
+                return null;
+            }
         }
-        return bookmark;
     }
 
     /**
@@ -119,25 +151,26 @@ public class BookmarkManager {
         if (bookmark.isGlobalBookmark())            return true;
         if (bookmark.getUsers().contains(username)) return true;
 
-        Collection<String> groups = bookmark.getGroups();
-
-        if (groups != null && !groups.isEmpty())
-        {
-            GroupManager groupManager = GroupManager.getInstance();
-
-            for (String groupName : groups) {
-                try {
-                    Group group = groupManager.getGroup(groupName);
-
-                    if (group.isUser(username)) {
-                        return true;
-                    }
-                } catch (GroupNotFoundException e) { }
-            }
+        try {
+            return BookmarkIndex.getInstance().getBookmarkIDs(getSnapshot(), username).contains(bookmark.getBookmarkID());
+        } catch (ServiceException e) {
+            Log.error("isBookmarkForUser", e);
         }
         return false;
     }
 
+    /**
+     * Returns the bookmarks that are visible to a user: global bookmarks, and those that are assigned to the user or
+     * to a group that the user is in.
+     *
+     * @param username the name of the user.
+     * @return the bookmarks of the user (an unmodifiable list).
+     */
+    public static List<Bookmark> getBookmarksForUser(String username) throws ServiceException
+    {
+        return BookmarkIndex.getInstance().getBookmarks(getSnapshot(), username);
+    }
+
     /**
      * Broadcasts groupchat notification message to all users of a bookmark.
      *
@@ -217,25 +250,146 @@ public class BookmarkManager {
      * @return the collection of bookmarks.
      */
     public static Collection<Bookmark> getBookmarks() throws ServiceException {
-        // TODO: add caching.
-        List<Bookmark> bookmarks = new ArrayList<Bookmark>();
+        return new ArrayList<Bookmark>(getSnapshot().byID.values());
+    }
+
+    /**
+     * Discards the cached bookmarks (on every node), so that they are loaded again when next used. This is to be called
+     * after every change to a bookmark.
+     */
+    public static void invalidateCache() {
+        final Cache<String, Long> generations = getGenerationCache();
+
+        final Lock lock = generations.getLock(CACHE_KEY);
+        lock.lock();
+        try {
+            generations.put(CACHE_KEY, getGeneration(generations) + 1);
+        }
+        finally {
+            lock.unlock();
+        }
+        cached = null;
+    }
+
+    /**
+     * Removes the bookmark cache, as this plugin is unloaded.
+     */
+    public static void destroyCache() {
+        cached = null;
+        CacheFactory.destroyCache(GENERATION_CACHE_NAME);
+    }
+
+    /**
+     * The (cluster-wide) number of changes that were made to the bookmarks. Only this number is shared between the
+     * nodes; every node keeps its own copy of the bookmarks, and loads them again when the number changes.
+     */
+    private static Cache<String, Long> getGenerationCache() {
+        return CacheFactory.createCache(GENERATION_CACHE_NAME);
+    }
+
+    private static long getGeneration(Cache<String, Long> generations) {
+        final Long generation = generations.get(CACHE_KEY);
+        return generation == null ? 0 : generation;
+    }
+
+    /**
+     * Returns all bookmarks, loading them when they were not loaded yet, when a change was made to them (on any node)
+     * since, or when they are older than 'ofmeet.bookmarks.cache.ttl' milliseconds (as bookmarks can also be changed
+     * by other plugins that share the tables).
+     *
+     * Only one thread of a node loads the bookmarks. While it does, the other threads use the expired bookmarks, or
+     * wait for it when there are none (or when they were changed). A snapshot is tagged with the generation that was
+     * read before it was loaded, so a change that is made while it is loaded causes it to be loaded again.
+     */
+    private static Snapshot getSnapshot() throws ServiceException {
+        final long generation = getGeneration(getGenerationCache());
+        Snapshot snapshot = cached;
+        if (snapshot != null && snapshot.generation == generation && !isExpired(snapshot)) {
+            return snapshot;
+        }
+
+        if (snapshot != null && snapshot.generation == generation) {
+            if (!loading.tryLock()) {
+                return snapshot;
+            }
+        }
+        else {
+            loading.lock();
+        }
+
+        try {
+            // Another thread may have loaded the bookmarks in the meantime.
+            final long current = getGeneration(getGenerationCache());
+            snapshot = cached;
+            if (snapshot != null && snapshot.generation == current && !isExpired(snapshot)) {
+                return snapshot;
+            }
+
+            snapshot = loadSnapshot(current);
+            cached = snapshot;
+            return snapshot;
+        }
+        finally {
+            loading.unlock();
+        }
+    }
+
+    private static boolean isExpired(Snapshot snapshot) {
+        return System.currentTimeMillis() - snapshot.loaded > JiveGlobals.getLongProperty("ofmeet.bookmarks.cache.ttl", 300000);
+    }
+
+    /**
+     * Loads all bookmarks with their permissions and properties, using one query for each table.
+     */
+    private static Snapshot loadSnapshot(long generation) throws ServiceException {
+        final Snapshot snapshot = new Snapshot(generation);
+        final Map<Long, List<String>> users = new HashMap<Long, List<String>>();
+        final Map<Long, List<String>> groups = new HashMap<Long, List<String>>();
+        final Map<Long, Map<String, String>> properties = new HashMap<Long, Map<String, String>>();
+
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
         try {
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(SELECT_BOOKMARKS);
+
+            pstmt = con.prepareStatement(LOAD_BOOKMARK_PERMISSIONS);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final Map<Long, List<String>> permissions = rs.getInt(2) == 0 ? users : groups;
+                permissions.computeIfAbsent(rs.getLong(1), id -> new ArrayList<String>()).add(rs.getString(3));
+            }
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+
+            pstmt = con.prepareStatement(LOAD_BOOKMARK_PROPERTIES);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                properties.computeIfAbsent(rs.getLong(1), id -> new Hashtable<String, String>()).put(rs.getString(2), rs.getString(3));
+            }
+            DbConnectionManager.fastcloseStmt(rs, pstmt);
+
+            pstmt = con.prepareStatement(LOAD_BOOKMARKS);
             rs = pstmt.executeQuery();
             while (rs.next()) {
-                long bookmarkID = rs.getLong(1);
+                final long bookmarkID = rs.getLong(1);
+                final Bookmark.Type type;
                 try {
-                    Bookmark bookmark = new Bookmark(bookmarkID);
-                    bookmarks.add(bookmark);
+                    type = Bookmark.Type.valueOf(rs.getString(2));
                 }
-                catch (NotFoundException nfe) {
-                    Log.error(nfe.getMessage(), nfe);
+                catch (Exception e) {
+                    Log.error("Bookmark " + bookmarkID + " has an unknown type: " + rs.getString(2));
+                    continue;
                 }
+
+                final Map<String, String> bookmarkProperties = properties.get(bookmarkID);
+                final Bookmark bookmark = new Bookmark(bookmarkID, type, rs.getString(3), rs.getString(4), rs.getInt(5) == 1,
+                        users.getOrDefault(bookmarkID, new ArrayList<String>()),
+                        groups.getOrDefault(bookmarkID, new ArrayList<String>()),
+                        bookmarkProperties != null ? bookmarkProperties : new Hashtable<String, String>());
+
+                snapshot.byID.put(bookmarkID, bookmark);
+                if (bookmark.getValue() != null) snapshot.byValue.putIfAbsent(bookmark.getValue(), bookmarkID);
             }
         }
         catch (SQLException e) {
@@ -246,7 +400,24 @@ public class BookmarkManager {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
 
-        return bookmarks;
+        return snapshot;
+    }
+
+    /**
+     * All bookmarks, as cached by this node.
+     */
+    static class Snapshot {
+        private static final AtomicLong snapshots = new AtomicLong();
+
+        final long id = snapshots.incrementAndGet();
+        final long generation;
+        final long loaded = System.currentTimeMillis();
+        final LinkedHashMap<Long, Bookmark> byID = new LinkedHashMap<Long, Bookmark>();
+        final HashMap<String, Long> byValue = new HashMap<String, Long>();
+
+        Snapshot(long generation) {
+            this.generation = generation;
+        }
     }
 
     /**
@@ -270,6 +441,7 @@ public class BookmarkManager {
         }
         finally {
             DbConnectionManager.closeConnection(pstmt, con);
+            invalidateCache();
         }
     }
 }
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Verifies which request URIs {@link JitsiMeetRedirectFilter} forwards to the welcome page.
+ */
+public class JitsiMeetRedirectFilterTest
+{
+    private JitsiMeetRedirectFilter filter;
+
+    @Before
+    public void createFilter()
+    {
+        filter = new JitsiMeetRedirectFilter();
+        filter.configure( "/ofmeet", Arrays.asList( "png", " .js", "json", "" ), Arrays.asList( "webchat", "/dashboard" ) );
+    }
+
+    private boolean forwards( String uri )
+    {
+        return filter.hasCorrectContext( uri ) && !filter.containsExcludedExtension( uri );
+    }
+
+    @Test
+    public void testForwardsRooms()
+    {
+        assertTrue( forwards( "/ofmeet/myroom" ) );
+        assertTrue( forwards( "/ofmeet/my.room" ) );
+        assertTrue( forwards( "/ofmeet/room.jsx" ) );
+        assertTrue( forwards( "/ofmeet/room.j" ) );
+        assertTrue( forwards( "/ofmeet/roomwebchat" ) );
+    }
+
+    @Test
+    public void testDoesNotForwardExcludedExtensions()
+    {
+        assertFalse( forwards( "/ofmeet/room.js" ) );
+        assertFalse( forwards( "/ofmeet/room.JSON" ) );
+        assertFalse( forwards( "/ofmeet/Room.Png" ) );
+    }
+
+    @Test
+    public void testDoesNotForwardExcludedPrefixes()
+    {
+        assertFalse( forwards( "/ofmeet/webchat" ) );
+        assertFalse( forwards( "/ofmeet/WebChat-room" ) );
+        assertFalse( forwards( "/ofmeet/dashboard.html" ) );
+    }
+
+    @Test
+    public void testDoesNotForwardOutsideTheContext()
+    {
+        assertFalse( forwards( "/ofmeet" ) );
+        assertFalse( forwards( "/ofmeet/" ) );
+        assertFalse( forwards( "/ofmeetroom" ) );
+        assertFalse( forwards( "/other/room" ) );
+        assertFalse( forwards( "/ofmeet/childcontext/anything" ) );
+        assertFalse( forwards( "/ofmeet/room/" ) );
+    }
+
+    @Test
+    public void testRootContext()
+    {
+        filter.configure( "", Arrays.asList( "js" ), Arrays.asList( "webchat" ) );
+
+        assertTrue( forwards( "/myroom" ) );
+        assertFalse( forwards( "/" ) );
+        assertFalse( forwards( "/app.js" ) );
+        assertFalse( forwards( "/libs/app" ) );
+    }
+}
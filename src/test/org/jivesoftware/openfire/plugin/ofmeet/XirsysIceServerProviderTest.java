@@ -0,0 +1,180 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.plugin.ofmeet;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link XirsysIceServerProvider} against a stub of the Xirsys API on the loopback interface.
+ */
+public class XirsysIceServerProviderTest
+{
+    private static final String ICE_SERVERS = "{\"iceServers\":[{\"urls\":\"turn:turn.example.org:3478\",\"username\":\"user\",\"credential\":\"secret\"}]}";
+
+    private HttpServer server;
+    private ExecutorService serverExecutor;
+    private XirsysIceServerProvider provider;
+
+    /**
+     * What the stub does with the next request: 200 with credentials, 500, or nothing for a long while.
+     */
+    private volatile String behaviour = "ok";
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException
+    {
+        server = HttpServer.create( new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ), 0 );
+        serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor( serverExecutor );
+        server.createContext( "/ice", this::handle );
+        server.start();
+    }
+
+    @After
+    public void stopServer()
+    {
+        if ( provider != null ) provider.stop();
+        server.stop( 0 );
+        serverExecutor.shutdownNow();
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException
+    {
+        requests.incrementAndGet();
+        try
+        {
+            switch ( behaviour )
+            {
+                case "slow":
+                    Thread.sleep( 5000 );
+                    // fall through
+                case "ok":
+                    final byte[] body = ( "{\"s\":\"ok\",\"d\":" + ICE_SERVERS + "}" ).getBytes( StandardCharsets.UTF_8 );
+                    exchange.sendResponseHeaders( 200, body.length );
+                    try ( OutputStream out = exchange.getResponseBody() )
+                    {
+                        out.write( body );
+                    }
+                    break;
+
+                default:
+                    exchange.sendResponseHeaders( 500, -1 );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+
+    private void start( long ttl, int readTimeout, int circuitFailures, long circuitOpen )
+    {
+        final String url = "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/ice";
+        final XirsysIceServerProvider.Settings settings = new XirsysIceServerProvider.Settings( url, ttl, 1000, readTimeout, circuitFailures, circuitOpen );
+        provider = new XirsysIceServerProvider( () -> settings );
+        provider.start();
+    }
+
+    private static void await( BooleanSupplier condition, long timeout ) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + timeout;
+        while ( !condition.getAsBoolean() )
+        {
+            assertTrue( "Timed out waiting for the condition", System.currentTimeMillis() < deadline );
+            Thread.sleep( 10 );
+        }
+    }
+
+    @Test
+    public void testServesFetchedIceServers() throws Exception
+    {
+        start( 60000, 1000, 3, 60000 );
+
+        await( () -> provider.getIceServers() != null, 5000 );
+        assertEquals( ICE_SERVERS, provider.getIceServers() );
+        assertEquals( 1, requests.get() );
+    }
+
+    @Test
+    public void testSlowApiTimesOutAndIsRetried() throws Exception
+    {
+        behaviour = "slow";
+        start( 500, 200, 10, 60000 );
+
+        // Every request is abandoned after the read timeout (200 ms), long before the stub answers (5 s).
+        await( () -> requests.get() >= 3, 3000 );
+        assertNull( provider.getIceServers() );
+    }
+
+    @Test
+    public void testCircuitOpensAfterConsecutiveFailures() throws Exception
+    {
+        behaviour = "error";
+        start( 500, 1000, 3, 1500 );
+
+        await( () -> requests.get() >= 3, 3000 );
+
+        // The circuit is open: the API is left alone for a while.
+        Thread.sleep( 700 );
+        assertEquals( 3, requests.get() );
+        assertNull( provider.getIceServers() );
+
+        // ... and called again when the circuit closes, which succeeds.
+        behaviour = "ok";
+        await( () -> provider.getIceServers() != null, 3000 );
+        assertEquals( 4, requests.get() );
+    }
+
+    @Test
+    public void testServesLastGoodCredentialsWhileFailingUntilTheyExpire() throws Exception
+    {
+        start( 3000, 1000, 3, 60000 );
+        await( () -> provider.getIceServers() != null, 5000 );
+        final String fetched = provider.getIceServers();
+
+        // The refresh (at 80% of the TTL) fails; the credentials are still valid and still served.
+        behaviour = "error";
+        await( () -> requests.get() >= 2, 5000 );
+        Thread.sleep( 200 );
+        assertNotNull( provider.getIceServers() );
+        assertEquals( fetched, provider.getIceServers() );
+
+        // Once they expire, nothing is served.
+        await( () -> provider.getIceServers() == null, 5000 );
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.plugin.spark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the visibility of bookmarks as determined by {@link BookmarkIndex.Index}, and how it is kept and invalidated.
+ */
+public class BookmarkIndexTest {
+
+    private final Map<String, Collection<String>> groups = new HashMap<String, Collection<String>>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private BookmarkManager.Snapshot snapshot;
+
+    /**
+     * Run once, just after the groups of a user were looked up, if set.
+     */
+    private Runnable duringLookup = null;
+
+    @Before
+    public void createSnapshot() {
+        snapshot = new BookmarkManager.Snapshot(0);
+        add(1, true, Collections.<String>emptyList(), Collections.<String>emptyList());
+        add(2, false, Arrays.asList("alice"), Collections.<String>emptyList());
+        add(3, false, Collections.<String>emptyList(), Arrays.asList("sales"));
+        add(4, false, Arrays.asList("bob"), Collections.<String>emptyList());
+        add(5, false, Arrays.asList("alice"), Arrays.asList("sales"));
+
+        groups.put("alice", Arrays.asList("sales"));
+        groups.put("bob", Arrays.asList("support"));
+    }
+
+    private void add(long id, boolean global, List<String> users, List<String> groupNames) {
+        snapshot.byID.put(id, new Bookmark(id, Bookmark.Type.group_chat, "Room " + id, "room" + id + "@conference.example.org",
+                global, new ArrayList<String>(users), new ArrayList<String>(groupNames), new HashMap<String, String>()));
+    }
+
+    private BookmarkIndex.Index createIndex(int maxVisible) {
+        return new BookmarkIndex.Index(snapshot, username -> {
+            lookups.incrementAndGet();
+            final Collection<String> result = groups.getOrDefault(username, Collections.<String>emptyList());
+            final Runnable action = duringLookup;
+            duringLookup = null;
+            if (action != null) {
+                action.run();
+            }
+            return result;
+        }, maxVisible);
+    }
+
+    private static List<Long> ids(BookmarkIndex.Visible visible) {
+        final List<Long> result = new ArrayList<Long>();
+        for (Bookmark bookmark : visible.bookmarks) {
+            result.add(bookmark.getBookmarkID());
+        }
+        return result;
+    }
+
+    @Test
+    public void testVisibleBookmarksAreInSnapshotOrder() {
+        final BookmarkIndex.Index index = createIndex(100);
+
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L), ids(index.getVisible("alice")));
+        assertEquals(Arrays.asList(1L, 4L), ids(index.getVisible("bob")));
+        assertTrue(index.getVisible("alice").ids.contains(3L));
+        assertFalse(index.getVisible("bob").ids.contains(3L));
+    }
+
+    @Test
+    public void testUsersWithOnlyGlobalBookmarksShareTheResult() {
+        final BookmarkIndex.Index index = createIndex(100);
+
+        final BookmarkIndex.Visible carol = index.getVisible("carol");
+        assertEquals(Arrays.asList(1L), ids(carol));
+        assertSame(carol, index.getVisible("dave"));
+    }
+
+    @Test
+    public void testVisibilityIsDeterminedOnce() {
+        final BookmarkIndex.Index index = createIndex(100);
+
+        final BookmarkIndex.Visible first = index.getVisible("alice");
+        assertSame(first, index.getVisible("alice"));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testInvalidatingOneUserKeepsTheOthers() {
+        final BookmarkIndex.Index index = createIndex(100);
+        final BookmarkIndex.Visible alice = index.getVisible("alice");
+        final BookmarkIndex.Visible bob = index.getVisible("bob");
+
+        groups.put("alice", Collections.<String>emptyList());
+        index.invalidate("alice");
+
+        assertNotSame(alice, index.getVisible("alice"));
+        assertEquals(Arrays.asList(1L, 2L, 5L), ids(index.getVisible("alice")));
+        assertSame(bob, index.getVisible("bob"));
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void testInvalidatingAllUsers() {
+        final BookmarkIndex.Index index = createIndex(100);
+        index.getVisible("alice");
+        index.getVisible("bob");
+
+        index.invalidate(null);
+        index.getVisible("alice");
+        index.getVisible("bob");
+
+        assertEquals(4, lookups.get());
+    }
+
+    @Test
+    public void testResultIsNotKeptWhenInvalidatedWhileDetermined() {
+        final BookmarkIndex.Index index = createIndex(100);
+
+        // Alice is added to 'sales' (and the index invalidated) just after her old groups were looked up.
+        groups.put("alice", Collections.<String>emptyList());
+        duringLookup = () -> {
+            groups.put("alice", Arrays.asList("sales"));
+            index.invalidate("alice");
+        };
+
+        final BookmarkIndex.Visible outdated = index.getVisible("alice");
+        assertEquals(Arrays.asList(1L, 2L, 5L), ids(outdated));
+
+        final BookmarkIndex.Visible current = index.getVisible("alice");
+        assertNotSame(outdated, current);
+        assertEquals(Arrays.asList(1L, 2L, 3L, 5L), ids(current));
+        assertEquals(2, lookups.get());
+
+        // ... and that result is kept.
+        assertSame(current, index.getVisible("alice"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testInvalidatingAnotherUserWhileDeterminedDiscardsTheResultToo() {
+        final BookmarkIndex.Index index = createIndex(100);
+
+        duringLookup = () -> index.invalidate("bob");
+        final BookmarkIndex.Visible first = index.getVisible("alice");
+
+        assertNotSame(first, index.getVisible("alice"));
+        assertEquals(2, lookups.get());
+    }
+
+    @Test
+    public void testNumberOfUsersKeptIsBounded() {
+        final BookmarkIndex.Index index = createIndex(2);
+
+        index.getVisible("alice");
+        index.getVisible("bob");
+        index.getVisible("erin");   // Makes room by forgetting alice and bob.
+        assertEquals(3, lookups.get());
+
+        index.getVisible("erin");
+        assertEquals(3, lookups.get());
+
+        index.getVisible("alice");
+        assertEquals(4, lookups.get());
+    }
+}
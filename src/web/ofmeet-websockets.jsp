@@ -0,0 +1,140 @@
+<%@ page import="org.jivesoftware.util.*,
+                 java.util.*,
+                 org.json.JSONObject,
+                 org.ifsoft.websockets.ProxyMetrics"
+    errorPage="error.jsp"
+%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/core" prefix="c"%>
+<%@ taglib uri="http://java.sun.com/jsp/jstl/fmt" prefix="fmt" %>
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+<%
+    final JSONObject metrics = ProxyMetrics.toJSON();
+    final JSONObject connectTime = metrics.getJSONObject("connect_time_ms");
+    final JSONObject executor = metrics.getJSONObject("executor");
+    final String[] sides = { "client", "bridge" };
+%>
+<html>
+<head>
+    <title><fmt:message key="config.page.websockets.title"/></title>
+    <meta http-equiv="refresh" content="60">
+    <meta name="pageID" content="ofmeet-websockets"/>
+</head>
+<body>
+    <p><fmt:message key="config.page.websockets.introduction"/> <a href="proxy-metrics.json">proxy-metrics.json</a></p>
+
+    <div class="jive-table">
+    <table cellpadding="0" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="ofmeet.websockets.connections_active" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.connections_opened" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.connections_closed" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.connect_failures" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.connect_time_mean" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.connect_time_max" /></th>
+        </tr>
+    </thead>
+    <tbody>
+        <tr>
+            <td nowrap><%= metrics.getLong("connections_active") %></td>
+            <td nowrap><%= metrics.getLong("connections_opened") %></td>
+            <td nowrap><%= metrics.getLong("connections_closed") %></td>
+            <td nowrap><%= metrics.getLong("connect_failures") %></td>
+            <td nowrap><%= connectTime.getLong("mean") %></td>
+            <td nowrap><%= connectTime.getLong("max") %></td>
+        </tr>
+    </tbody>
+    </table>
+    </div>
+    <br/>
+    <p>&nbsp;</p>
+
+    <div class="jive-table">
+    <table cellpadding="0" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="ofmeet.websockets.side" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.frames" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.bytes" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.frame_size_mean" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.queue_depth_max" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.send_latency_mean" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.send_latency_max" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.dropped" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.suspensions" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.overflow_closes" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.close_codes" /></th>
+        </tr>
+    </thead>
+    <tbody>
+<%
+    int i = 0;
+
+    for (String side : sides)
+    {
+        final JSONObject stats = metrics.getJSONObject(side);
+        final JSONObject codes = stats.getJSONObject("close_codes");
+        final StringBuilder closeCodes = new StringBuilder();
+
+        for (String code : codes.keySet())
+        {
+            closeCodes.append(code).append(": ").append(codes.getLong(code)).append("&nbsp; ");
+        }
+        i++;
+%>
+        <tr class="jive-<%= (((i%2)==0) ? "even" : "odd") %>">
+            <td nowrap><fmt:message key="<%= "ofmeet.websockets.side." + side %>" /></td>
+            <td nowrap><%= stats.getLong("frames") %></td>
+            <td nowrap><%= stats.getLong("bytes") %></td>
+            <td nowrap><%= stats.getJSONObject("frame_size_bytes").getLong("mean") %></td>
+            <td nowrap><%= stats.getJSONObject("queue_depth").getLong("max") %></td>
+            <td nowrap><%= stats.getJSONObject("send_latency_ms").getLong("mean") %></td>
+            <td nowrap><%= stats.getJSONObject("send_latency_ms").getLong("max") %></td>
+            <td nowrap><%= stats.getLong("dropped") %></td>
+            <td nowrap><%= stats.getLong("suspensions") %></td>
+            <td nowrap><%= stats.getLong("overflow_closes") %></td>
+            <td nowrap><%= closeCodes.length() == 0 ? "&nbsp;" : closeCodes.toString() %></td>
+        </tr>
+<%
+    }
+%>
+    </tbody>
+    </table>
+    </div>
+<%
+    if (executor.has("threads"))
+    {
+%>
+    <br/>
+    <p>&nbsp;</p>
+
+    <div class="jive-table">
+    <table cellpadding="0" cellspacing="0" border="0" width="100%">
+    <thead>
+        <tr>
+            <th nowrap><fmt:message key="ofmeet.websockets.threads" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.threads_busy" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.threads_idle" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.threads_max" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.queue_size" /></th>
+            <th nowrap><fmt:message key="ofmeet.websockets.utilization" /></th>
+        </tr>
+    </thead>
+    <tbody>
+        <tr>
+            <td nowrap><%= executor.getInt("threads") %></td>
+            <td nowrap><%= executor.getInt("threads_busy") %></td>
+            <td nowrap><%= executor.getInt("threads_idle") %></td>
+            <td nowrap><%= executor.getInt("threads_max") %></td>
+            <td nowrap><%= executor.getInt("queue_size") %></td>
+            <td nowrap><%= Math.round(executor.getDouble("utilization") * 100) %>%</td>
+        </tr>
+    </tbody>
+    </table>
+    </div>
+<%
+    }
+%>
+</body>
+</html>